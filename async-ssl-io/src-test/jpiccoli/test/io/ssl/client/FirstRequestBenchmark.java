@@ -0,0 +1,140 @@
+package jpiccoli.test.io.ssl.client;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousSocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.TrustManager;
+import jpiccoli.io.ssl.AsynchronousSSLChannel;
+import jpiccoli.io.ssl.AsynchronousSSLChannelBuilder;
+import jpiccoli.io.ssl.SSLWarmUp;
+import jpiccoli.test.io.ssl.server.SimpleEchoServer;
+import jpiccoli.test.io.ssl.server.SimpleHttpsServer;
+
+/**
+ * Measures the latency of the first connections accepted by a freshly started {@code SimpleEchoServer},
+ * with and without {@link SSLWarmUp}. Each server runs in a new JVM, while the client side of the
+ * measurement is warmed up beforehand so only the server differs between both runs. The latency of
+ * a connection covers the TCP connection, the TLS handshake and the echo of a first 1 KB request.
+ * Usage: {@code FirstRequestBenchmark [connections] [warmUpHandshakes]}.
+ */
+public class FirstRequestBenchmark {
+
+    private static final int REQUEST_SIZE = 1024;
+    private static final int RESPONSE_BUFFER_SIZE = 1024 * 32;
+    private static final int ENGINE_POOL_SIZE = 64;
+
+    private final SSLContext sslContext;
+    private final ExecutorService executorService;
+
+    private FirstRequestBenchmark() throws Exception {
+        sslContext = SSLContext.getInstance("TLS");
+        sslContext.init(null, new TrustManager[] {new DummyTrustManager()}, null);
+        executorService = Executors.newCachedThreadPool();
+    }
+
+    private void measure(final String mode, final int connections, final int warmUpHandshakes) throws Exception {
+        Process process = new ProcessBuilder(System.getProperty("java.home") + "/bin/java", "-cp", System.getProperty("java.class.path"),
+            FirstRequestBenchmark.class.getName(), "server", Integer.toString(warmUpHandshakes))
+            .redirectError(ProcessBuilder.Redirect.INHERIT).start();
+        try {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.US_ASCII));
+            String[] ready = reader.readLine().split(" ");
+            InetSocketAddress target = new InetSocketAddress("localhost", Integer.parseInt(ready[0]));
+            long[] latencies = new long[connections];
+            for (int i = 0; i < connections; i++) {
+                latencies[i] = TimeUnit.NANOSECONDS.toMicros(connectAndRequest(target));
+            }
+            long firstTen = 0;
+            for (int i = 0; i < Math.min(10, connections); i++) {
+                firstTen += latencies[i];
+            }
+            firstTen /= Math.min(10, connections);
+            long first = latencies[0];
+            Arrays.sort(latencies);
+            System.out.println(String.format("%-5s %10s %9d %13d %8d %8d %8d", mode, ready[1], first, firstTen,
+                latencies[connections / 2], latencies[connections * 9 / 10], latencies[connections * 99 / 100]));
+        } finally {
+            process.getOutputStream().close();
+            if (!process.waitFor(10, TimeUnit.SECONDS)) {
+                process.destroyForcibly();
+            }
+        }
+    }
+
+    /**
+     * @return The time taken for connecting, completing the handshake and receiving the echo of a first request.
+     */
+    private long connectAndRequest(final InetSocketAddress target) throws Exception {
+        long start = System.nanoTime();
+        AsynchronousSocketChannel socket = AsynchronousSocketChannel.open();
+        socket.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        socket.connect(target).get();
+        SSLEngine engine = sslContext.createSSLEngine(target.getHostString(), target.getPort());
+        engine.setUseClientMode(true);
+        try (AsynchronousSSLChannel channel = new AsynchronousSSLChannel(socket, engine, executorService)) {
+            ByteBuffer request = ByteBuffer.allocate(REQUEST_SIZE);
+            while (request.hasRemaining()) {
+                channel.write(request).get();
+            }
+            ByteBuffer response = ByteBuffer.allocate(RESPONSE_BUFFER_SIZE);
+            for (int received = 0; received < REQUEST_SIZE;) {
+                response.clear();
+                int result = channel.read(response).get();
+                if (result < 0) {
+                    throw new IOException("Connection closed by the server");
+                }
+                received += result;
+            }
+            return System.nanoTime() - start;
+        }
+    }
+
+    /**
+     * Entry point of the server processes: reports the port and the warm up time, then serves until the standard input is closed.
+     */
+    private static void runServer(final int warmUpHandshakes) throws Exception {
+        try (SimpleEchoServer server = new SimpleEchoServer(0)) {
+            long start = System.nanoTime();
+            if (warmUpHandshakes > 0) {
+                server.warmUp(warmUpHandshakes, ENGINE_POOL_SIZE);
+            }
+            long warmUpMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            server.start();
+            System.out.println(server.getPort() + " " + warmUpMillis);
+            System.out.flush();
+            while (System.in.read() >= 0) {
+                //
+            }
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length > 1 && "server".equals(args[0])) {
+            runServer(Integer.parseInt(args[1]));
+            return;
+        }
+        int connections = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+        int warmUpHandshakes = args.length > 1 ? Integer.parseInt(args[1]) : SSLWarmUp.DEFAULT_HANDSHAKE_COUNT;
+        FirstRequestBenchmark benchmark = new FirstRequestBenchmark();
+        // The client side is warmed up in this process, so the measurements only reflect the state of the servers.
+        new SSLWarmUp(SimpleHttpsServer.createSSLContext(), new AsynchronousSSLChannelBuilder(), benchmark.executorService)
+            .setHandshakeCount(warmUpHandshakes).run();
+        System.out.println("mode  warmup(ms) first(us) first10avg(us) p50(us)  p90(us)  p99(us)");
+        benchmark.measure("cold", connections, 0);
+        benchmark.measure("warm", connections, warmUpHandshakes);
+        benchmark.executorService.shutdownNow();
+    }
+
+}
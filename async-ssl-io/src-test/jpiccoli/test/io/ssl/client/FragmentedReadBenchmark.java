@@ -0,0 +1,212 @@
+package jpiccoli.test.io.ssl.client;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousByteChannel;
+import java.nio.channels.CompletionHandler;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.TrustManager;
+import jpiccoli.io.ssl.AsynchronousSSLChannel;
+import jpiccoli.io.ssl.CompletableFutureWrapper;
+import jpiccoli.test.io.ssl.server.SimpleHttpsServer;
+
+/**
+ * Measures how fast {@link AsynchronousSSLChannel} decrypts full sized records when its delegate channel
+ * returns them in small fragments, as a socket does under load or over a slow link. The ciphertext is
+ * produced beforehand by a server SSLEngine and served from memory, so the measurement covers the
+ * handling of the input buffer and the decryption but no network IO.
+ * Usage: {@code FragmentedReadBenchmark [megabytes] [fragmentSize...]}.
+ */
+public class FragmentedReadBenchmark {
+
+    private static final int READ_BUFFER_SIZE = 1024 * 64;
+    private static final int ROUNDS = 5;
+
+    private final SSLContext serverContext;
+    private final SSLContext clientContext;
+
+    private FragmentedReadBenchmark() throws Exception {
+        serverContext = SimpleHttpsServer.createSSLContext();
+        clientContext = SSLContext.getInstance("TLSv1.2");
+        clientContext.init(null, new TrustManager[] {new DummyTrustManager()}, null);
+    }
+
+    /**
+     * @return The throughput in MB/s of reading the given amount of plaintext through fragments of the given size.
+     */
+    private double run(final int megabytes, final int fragmentSize) throws Exception {
+        SSLEngine client = clientContext.createSSLEngine("localhost", 443);
+        client.setUseClientMode(true);
+        SSLEngine server = serverContext.createSSLEngine();
+        server.setUseClientMode(false);
+        handshake(client, server);
+        long plaintextSize = megabytes * 1024L * 1024L;
+        byte[] ciphertext = encrypt(server, plaintextSize);
+        Executor inline = Runnable::run;
+        AsynchronousSSLChannel channel = new AsynchronousSSLChannel(new FragmentingChannel(ciphertext, fragmentSize), client, inline);
+        ByteBuffer buffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+        long start = System.nanoTime();
+        for (long received = 0; received < plaintextSize;) {
+            buffer.clear();
+            int result = channel.read(buffer).get();
+            if (result < 0) {
+                throw new IOException("Unexpected end of stream after " + received + " bytes");
+            }
+            received += result;
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        channel.close();
+        return megabytes / seconds;
+    }
+
+    /**
+     * Runs the handshake between two engines in memory.
+     */
+    private static void handshake(final SSLEngine client, final SSLEngine server) throws IOException {
+        ByteBuffer clientToServer = ByteBuffer.allocate(client.getSession().getPacketBufferSize() * 4);
+        ByteBuffer serverToClient = ByteBuffer.allocate(server.getSession().getPacketBufferSize() * 4);
+        ByteBuffer empty = ByteBuffer.allocate(0);
+        ByteBuffer sink = ByteBuffer.allocate(client.getSession().getApplicationBufferSize() * 4);
+        client.beginHandshake();
+        server.beginHandshake();
+        while (!isHandshakeDone(client) || !isHandshakeDone(server)) {
+            step(client, empty, clientToServer, serverToClient, sink);
+            step(server, empty, serverToClient, clientToServer, sink);
+        }
+    }
+
+    private static boolean isHandshakeDone(final SSLEngine engine) {
+        return engine.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING;
+    }
+
+    private static void step(final SSLEngine engine, final ByteBuffer empty, final ByteBuffer outbound, final ByteBuffer inbound,
+            final ByteBuffer sink) throws IOException {
+        switch (engine.getHandshakeStatus()) {
+            case NEED_WRAP:
+                engine.wrap(empty, outbound);
+                break;
+            case NEED_UNWRAP:
+                inbound.flip();
+                engine.unwrap(inbound, sink);
+                inbound.compact();
+                sink.clear();
+                break;
+            case NEED_TASK:
+                Runnable task;
+                while ((task = engine.getDelegatedTask()) != null) {
+                    task.run();
+                }
+                break;
+            default:
+                break;
+        }
+    }
+
+    private static byte[] encrypt(final SSLEngine server, final long plaintextSize) throws IOException {
+        ByteBuffer plaintext = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        ByteBuffer packet = ByteBuffer.allocate(server.getSession().getPacketBufferSize());
+        ByteArrayOutputStream ciphertext = new ByteArrayOutputStream((int) (plaintextSize + plaintextSize / 64));
+        for (long produced = 0; produced < plaintextSize;) {
+            plaintext.clear();
+            plaintext.limit((int) Math.min(plaintext.capacity(), plaintextSize - produced));
+            while (plaintext.hasRemaining()) {
+                packet.clear();
+                SSLEngineResult result = server.wrap(plaintext, packet);
+                produced += result.bytesConsumed();
+                ciphertext.write(packet.array(), 0, packet.position());
+            }
+        }
+        return ciphertext.toByteArray();
+    }
+
+    /**
+     * Serves a byte array through reads of at most {@code fragmentSize} bytes, completing them on the calling thread.
+     */
+    private static class FragmentingChannel implements AsynchronousByteChannel {
+
+        private final ByteBuffer source;
+        private final int fragmentSize;
+        private boolean open;
+
+        FragmentingChannel(final byte[] data, final int fragmentSize) {
+            this.source = ByteBuffer.wrap(data);
+            this.fragmentSize = fragmentSize;
+            open = true;
+        }
+
+        @Override
+        public <A> void read(final ByteBuffer dst, final A attachment, final CompletionHandler<Integer, ? super A> handler) {
+            if (!source.hasRemaining()) {
+                handler.completed(-1, attachment);
+                return;
+            }
+            int length = Math.min(Math.min(fragmentSize, dst.remaining()), source.remaining());
+            ByteBuffer fragment = source.duplicate();
+            fragment.limit(fragment.position() + length);
+            dst.put(fragment);
+            source.position(source.position() + length);
+            handler.completed(length, attachment);
+        }
+
+        @Override
+        public Future<Integer> read(final ByteBuffer dst) {
+            CompletableFuture<Integer> future = new CompletableFuture<>();
+            read(dst, null, new CompletableFutureWrapper<>(future));
+            return future;
+        }
+
+        @Override
+        public <A> void write(final ByteBuffer src, final A attachment, final CompletionHandler<Integer, ? super A> handler) {
+            int length = src.remaining();
+            src.position(src.limit());
+            handler.completed(length, attachment);
+        }
+
+        @Override
+        public Future<Integer> write(final ByteBuffer src) {
+            CompletableFuture<Integer> future = new CompletableFuture<>();
+            write(src, null, new CompletableFutureWrapper<>(future));
+            return future;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return open;
+        }
+
+        @Override
+        public void close() {
+            open = false;
+        }
+
+    }
+
+    public static void main(String[] args) throws Exception {
+        int megabytes = args.length > 0 ? Integer.parseInt(args[0]) : 128;
+        int[] fragmentSizes = {256, 1024, 4096, 16384, 65536};
+        if (args.length > 1) {
+            fragmentSizes = new int[args.length - 1];
+            for (int i = 1; i < args.length; i++) {
+                fragmentSizes[i - 1] = Integer.parseInt(args[i]);
+            }
+        }
+        FragmentedReadBenchmark benchmark = new FragmentedReadBenchmark();
+        System.out.println("fragment(B)     MB/s");
+        for (int fragmentSize : fragmentSizes) {
+            double best = 0;
+            // The best of a few rounds, the first ones being slowed down by the JIT warm up.
+            for (int round = 0; round < ROUNDS; round++) {
+                best = Math.max(best, benchmark.run(megabytes, fragmentSize));
+            }
+            System.out.println(String.format("%11d %8.1f", fragmentSize, best));
+        }
+    }
+
+}
@@ -0,0 +1,427 @@
+package jpiccoli.test.io.ssl.client;
+
+import java.io.IOException;
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousByteChannel;
+import java.nio.channels.AsynchronousChannelGroup;
+import java.nio.channels.AsynchronousSocketChannel;
+import java.nio.channels.InterruptedByTimeoutException;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.security.GeneralSecurityException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.TrustManager;
+import jpiccoli.io.ssl.AsynchronousSSLChannelBuilder;
+import jpiccoli.io.ssl.AsynchronousSSLChannelBuilder.Profile;
+import jpiccoli.io.ssl.EventLoopGroup;
+import jpiccoli.io.ssl.IOHandlerBuilder;
+import jpiccoli.test.io.ssl.server.SimpleEchoServer;
+
+/**
+ * Opens many concurrent TLS connections against {@code SimpleEchoServer} or {@code SimpleHttpsServer}
+ * and reports handshake rate, request latency percentiles, throughput and memory usage once per second.
+ * <p>
+ * When requests are sent at a fixed rate, their latency is measured from the time each one was due to be
+ * sent, not from the time it actually was, so a server which stalls is also charged for the requests its
+ * stall held back. The first request of a connection is timed from the end of the handshake, whose duration
+ * does not count as request latency. Connections which do not complete their handshake in time are closed
+ * and counted as failures.
+ * <p>
+ * Parameters are given as {@code name=value} arguments:
+ * <ul>
+ * <li>{@code mode}: {@code echo} (default) or {@code http}.</li>
+ * <li>{@code host}, {@code port}: the target server. When no port is given, an echo server is started in process.</li>
+ * <li>{@code connections}: number of concurrent connections (default 1000).</li>
+ * <li>{@code connectRate}: maximum number of connections opened per second (default 500).</li>
+ * <li>{@code requestRate}: requests per second on each connection, 0 for back to back requests (default 10).</li>
+ * <li>{@code payloadSize}: size of the echo requests in bytes (default 1024).</li>
+ * <li>{@code path}: the path requested in http mode (default /index.html).</li>
+ * <li>{@code lifetime}: seconds after which a connection is closed and replaced, 0 to keep it (default 0).</li>
+ * <li>{@code connectTimeout}: seconds allowed for connecting and completing the handshake (default 10).</li>
+ * <li>{@code profile}: the {@link AsynchronousSSLChannelBuilder} profile of the channels of the load generator and of
+ * the in process echo server, {@code DEFAULT} standing for a plain builder (default LOW_MEMORY).</li>
+ * <li>{@code bufferSize}: overrides the ciphertext buffer sizes of the profile.</li>
+ * <li>{@code transport}: {@code async} for AsynchronousSocketChannels (default), or {@code selector} for the
+ * Selector driven loops of an {@link EventLoopGroup}, for both the load generator and the in process echo server.</li>
+ * <li>{@code duration}: total run time in seconds (default 30).</li>
+ * </ul>
+ */
+public class LoadGenerator {
+
+	private static final Logger LOGGER = Logger.getLogger(LoadGenerator.class.getName());
+
+    private static final int RESPONSE_BUFFER_SIZE = 1024 * 16;
+    private static final long OPENER_PERIOD_MILLIS = 10;
+
+    private final InetSocketAddress target;
+    private final boolean httpMode;
+    private final int connections;
+    private final int connectRate;
+    private final long requestIntervalNanos;
+    private final long lifetimeNanos;
+    private final long connectTimeoutNanos;
+    private final ByteBuffer requestTemplate;
+
+    private final SSLContext sslContext;
+    private final AsynchronousSSLChannelBuilder channelBuilder;
+    private final AsynchronousChannelGroup channelGroup;
+    private final EventLoopGroup eventLoopGroup;
+    private final ExecutorService executorService;
+    private final ScheduledExecutorService scheduler;
+
+    private final AtomicInteger activeConnections;
+    private final LongAdder handshakes;
+    private final LongAdder requests;
+    private final LongAdder bytesTransferred;
+    private final LongAdder failures;
+    private final LatencyHistogram intervalLatency;
+    private final LatencyHistogram totalLatency;
+
+    private double connectTokens;
+
+    public LoadGenerator(final Map<String, String> parameters, final InetSocketAddress target) throws IOException, GeneralSecurityException {
+        this.target = target;
+        httpMode = "http".equals(parameters.getOrDefault("mode", "echo"));
+        connections = Integer.parseInt(parameters.getOrDefault("connections", "1000"));
+        connectRate = Integer.parseInt(parameters.getOrDefault("connectRate", "500"));
+        int requestRate = Integer.parseInt(parameters.getOrDefault("requestRate", "10"));
+        requestIntervalNanos = requestRate > 0 ? TimeUnit.SECONDS.toNanos(1) / requestRate : 0;
+        lifetimeNanos = TimeUnit.SECONDS.toNanos(Long.parseLong(parameters.getOrDefault("lifetime", "0")));
+        connectTimeoutNanos = TimeUnit.SECONDS.toNanos(Long.parseLong(parameters.getOrDefault("connectTimeout", "10")));
+        if (httpMode) {
+            String request = "GET " + parameters.getOrDefault("path", "/index.html") + " HTTP/1.1\r\nHost: " + target.getHostString() + "\r\n\r\n";
+            requestTemplate = ByteBuffer.wrap(request.getBytes(StandardCharsets.US_ASCII)).asReadOnlyBuffer();
+        } else {
+            requestTemplate = ByteBuffer.allocate(Integer.parseInt(parameters.getOrDefault("payloadSize", "1024"))).asReadOnlyBuffer();
+        }
+        sslContext = SSLContext.getInstance("TLSv1.2");
+        sslContext.init(null, new TrustManager[] {new DummyTrustManager()}, null);
+        channelBuilder = createBuilder(parameters);
+        if (isSelectorTransport(parameters)) {
+            channelGroup = null;
+            eventLoopGroup = new EventLoopGroup();
+        } else {
+            channelGroup = AsynchronousChannelGroup.withFixedThreadPool(Runtime.getRuntime().availableProcessors(), Executors.defaultThreadFactory());
+            eventLoopGroup = null;
+        }
+        executorService = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+        scheduler = Executors.newScheduledThreadPool(2);
+        activeConnections = new AtomicInteger();
+        handshakes = new LongAdder();
+        requests = new LongAdder();
+        bytesTransferred = new LongAdder();
+        failures = new LongAdder();
+        intervalLatency = new LatencyHistogram();
+        totalLatency = new LatencyHistogram();
+    }
+
+    /**
+     * @return A builder for the given {@code profile} and {@code bufferSize} parameters. With their default sizes,
+     * thousands of channels would need gigabytes of direct memory for their ciphertext buffers.
+     */
+    static AsynchronousSSLChannelBuilder createBuilder(final Map<String, String> parameters) {
+        String profileName = parameters.getOrDefault("profile", Profile.LOW_MEMORY.name());
+        AsynchronousSSLChannelBuilder builder = "DEFAULT".equals(profileName) ? new AsynchronousSSLChannelBuilder()
+            : AsynchronousSSLChannelBuilder.forProfile(Profile.valueOf(profileName));
+        if (parameters.containsKey("bufferSize")) {
+            int bufferSize = Integer.parseInt(parameters.get("bufferSize"));
+            builder.setBufferSizes(bufferSize, bufferSize);
+        }
+        return builder;
+    }
+
+    static boolean isSelectorTransport(final Map<String, String> parameters) {
+        return "selector".equals(parameters.getOrDefault("transport", "async"));
+    }
+
+    public void run(final long durationSeconds) throws InterruptedException, IOException {
+        System.out.println("time  conns  handshakes/s  requests/s    MB/s  p50(us)  p99(us) p999(us)  failures  rss(MB) direct(MB)");
+        scheduler.scheduleAtFixedRate(this::openConnections, 0, OPENER_PERIOD_MILLIS, TimeUnit.MILLISECONDS);
+        long start = System.nanoTime();
+        for (long second = 1; second <= durationSeconds; second++) {
+            long wakeUp = start + TimeUnit.SECONDS.toNanos(second);
+            TimeUnit.NANOSECONDS.sleep(wakeUp - System.nanoTime());
+            report(second);
+        }
+        if (eventLoopGroup != null) {
+            eventLoopGroup.close();
+        } else {
+            channelGroup.shutdownNow();
+        }
+        scheduler.shutdownNow();
+        executorService.shutdownNow();
+        System.out.println("Overall: " + totalLatency.getCount() + " requests, p50=" + totalLatency.getValueAtPercentile(50)
+            + "us p99=" + totalLatency.getValueAtPercentile(99) + "us p999=" + totalLatency.getValueAtPercentile(99.9) + "us");
+    }
+
+    private synchronized void openConnections() {
+        connectTokens = Math.min(connectRate, connectTokens + connectRate * OPENER_PERIOD_MILLIS / 1000.0);
+        while (connectTokens >= 1 && activeConnections.get() < connections) {
+            connectTokens--;
+            activeConnections.incrementAndGet();
+            new Connection().open();
+        }
+    }
+
+    private void report(final long second) {
+        long requestCount = requests.sumThenReset();
+        LatencyHistogram snapshot = new LatencyHistogram();
+        intervalLatency.drainTo(snapshot);
+        System.out.println(String.format("%4d %6d %13d %11d %7.1f %8d %8d %8d %9d %8d %10d",
+            second, activeConnections.get(), handshakes.sumThenReset(), requestCount,
+            bytesTransferred.sumThenReset() / (1024.0 * 1024.0),
+            snapshot.getValueAtPercentile(50), snapshot.getValueAtPercentile(99), snapshot.getValueAtPercentile(99.9),
+            failures.sum(), getResidentSetSize() / (1024 * 1024), getDirectMemoryUsed() / (1024 * 1024)));
+        snapshot.drainTo(totalLatency);
+    }
+
+    private static long getResidentSetSize() {
+        try {
+            for (String line : Files.readAllLines(Paths.get("/proc/self/status"))) {
+                if (line.startsWith("VmRSS:")) {
+                    return Long.parseLong(line.replaceAll("[^0-9]", "")) * 1024;
+                }
+            }
+        } catch (IOException | NumberFormatException e) {
+            LOGGER.log(Level.FINE, "Resident set size not available", e);
+        }
+        return -1;
+    }
+
+    private static long getDirectMemoryUsed() {
+        for (BufferPoolMXBean pool : ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class)) {
+            if ("direct".equals(pool.getName())) {
+                return pool.getMemoryUsed();
+            }
+        }
+        return -1;
+    }
+
+    private class Connection {
+
+        private final ByteBuffer responseBuffer;
+
+        private AsynchronousByteChannel channel;
+        private ByteBuffer requestBuffer;
+        private volatile boolean handshakeCompleted;
+        private boolean closed;
+        private long openedAt;
+        private long requestScheduledAt;
+        private long responseLength;
+        private long responseReceived;
+
+        Connection() {
+            responseBuffer = ByteBuffer.allocate(RESPONSE_BUFFER_SIZE);
+        }
+
+        void open() {
+            openedAt = System.nanoTime();
+            scheduler.schedule(this::checkHandshakeCompleted, connectTimeoutNanos, TimeUnit.NANOSECONDS);
+            if (eventLoopGroup != null) {
+                // The selector transport has no asynchronous connect, so its connections are established on the executor.
+                executorService.execute(this::connectSelector);
+                return;
+            }
+            try {
+                AsynchronousSocketChannel socket = AsynchronousSocketChannel.open(channelGroup);
+                channel = socket;
+                socket.connect(target, null, IOHandlerBuilder.buildCompletionHandler(this::connected, this::ioFailed));
+            } catch (IOException e) {
+                ioFailed(e, null);
+            }
+        }
+
+        private void connected(final Void ignored, final Void ignored2) {
+            channel = channelBuilder.build(channel, createEngine(), executorService);
+            sendRequest();
+        }
+
+        private void connectSelector() {
+            try {
+                SocketChannel socket = SocketChannel.open(target);
+                if (setChannel(eventLoopGroup.registerSSL(socket, createEngine(), channelBuilder))) {
+                    sendRequest();
+                }
+            } catch (IOException e) {
+                ioFailed(e, null);
+            }
+        }
+
+        /**
+         * @return False if the connection was closed meanwhile, in which case the channel is closed as well.
+         */
+        private synchronized boolean setChannel(final AsynchronousByteChannel channel) throws IOException {
+            this.channel = channel;
+            if (closed) {
+                channel.close();
+                return false;
+            }
+            return true;
+        }
+
+        private SSLEngine createEngine() {
+            SSLEngine engine = sslContext.createSSLEngine(target.getHostString(), target.getPort());
+            engine.setUseClientMode(true);
+            return engine;
+        }
+
+        private void checkHandshakeCompleted() {
+            if (!handshakeCompleted) {
+                ioFailed(new InterruptedByTimeoutException(), null);
+            }
+        }
+
+        private void sendRequest() {
+            requestBuffer = requestTemplate.duplicate();
+            responseLength = httpMode ? -1 : requestBuffer.remaining();
+            responseReceived = 0;
+            responseBuffer.clear();
+            channel.write(requestBuffer, null, IOHandlerBuilder.buildCompletionHandler(this::writeCompleted, this::ioFailed));
+        }
+
+        private void writeCompleted(final Integer result, final Void ignored) {
+            if (!handshakeCompleted) {
+                // The first write only completes after the handshake, since no application data can be wrapped before it.
+                // The latency of the first request is measured from there, the handshake time being reported on its own.
+                handshakeCompleted = true;
+                handshakes.increment();
+                requestScheduledAt = System.nanoTime();
+            }
+            bytesTransferred.add(result);
+            if (requestBuffer.hasRemaining()) {
+                channel.write(requestBuffer, null, IOHandlerBuilder.buildCompletionHandler(this::writeCompleted, this::ioFailed));
+            } else {
+                channel.read(responseBuffer, null, IOHandlerBuilder.buildCompletionHandler(this::readCompleted, this::ioFailed));
+            }
+        }
+
+        private void readCompleted(final Integer result, final Void ignored) {
+            if (result < 0) {
+                ioFailed(new IOException("Connection closed by server"), null);
+                return;
+            }
+            responseReceived += result;
+            bytesTransferred.add(result);
+            if (responseLength < 0) {
+                responseLength = parseHttpResponseLength();
+            }
+            if (responseLength >= 0) {
+                responseBuffer.clear();
+            } else if (!responseBuffer.hasRemaining()) {
+                ioFailed(new IOException("Response header too large"), null);
+                return;
+            }
+            if (responseLength >= 0 && responseReceived >= responseLength) {
+                responseCompleted();
+            } else {
+                channel.read(responseBuffer, null, IOHandlerBuilder.buildCompletionHandler(this::readCompleted, this::ioFailed));
+            }
+        }
+
+        private void responseCompleted() {
+            long now = System.nanoTime();
+            intervalLatency.record(TimeUnit.NANOSECONDS.toMicros(now - requestScheduledAt));
+            requests.increment();
+            if (lifetimeNanos > 0 && now - openedAt >= lifetimeNanos) {
+                close();
+            } else if (requestIntervalNanos > 0 && !scheduler.isShutdown()) {
+                // The schedule does not shift when a response is late: the requests it held back are sent right away.
+                requestScheduledAt += requestIntervalNanos;
+                scheduler.schedule(this::sendRequest, Math.max(0, requestScheduledAt - now), TimeUnit.NANOSECONDS);
+            } else if (requestIntervalNanos == 0) {
+                requestScheduledAt = now;
+                sendRequest();
+            }
+        }
+
+        /**
+         * @return The total length of the HTTP response, or -1 if its header has not been completely received yet.
+         */
+        private long parseHttpResponseLength() {
+            String received = new String(responseBuffer.array(), 0, responseBuffer.position(), StandardCharsets.US_ASCII);
+            int headerEnd = received.indexOf("\r\n\r\n");
+            if (headerEnd < 0) {
+                return -1;
+            }
+            long contentLength = 0;
+            for (String line : received.substring(0, headerEnd).split("\r\n")) {
+                if (line.regionMatches(true, 0, "Content-Length:", 0, 15)) {
+                    contentLength = Long.parseLong(line.substring(15).trim());
+                }
+            }
+            return headerEnd + 4 + contentLength;
+        }
+
+        private void ioFailed(final Throwable exc, final Void ignored) {
+            // Operations still pending fail as well once the connection is closed, which is not another failure.
+            if (close()) {
+                LOGGER.log(Level.FINE, "Connection failed", exc);
+                failures.increment();
+            }
+        }
+
+        /**
+         * @return True if the connection was open, false if it had already been closed.
+         */
+        private synchronized boolean close() {
+            if (closed) {
+                return false;
+            }
+            closed = true;
+            activeConnections.decrementAndGet();
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    LOGGER.log(Level.FINE, "Error closing connection", e);
+                }
+            }
+            return true;
+        }
+
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> parameters = new HashMap<>();
+        for (String arg : args) {
+            int separator = arg.indexOf('=');
+            parameters.put(arg.substring(0, separator), arg.substring(separator + 1));
+        }
+        SimpleEchoServer echoServer = null;
+        InetSocketAddress target;
+        if (parameters.containsKey("port")) {
+            target = new InetSocketAddress(parameters.getOrDefault("host", "localhost"), Integer.parseInt(parameters.get("port")));
+        } else {
+            echoServer = new SimpleEchoServer(0, createBuilder(parameters), isSelectorTransport(parameters) ? new EventLoopGroup() : null);
+            echoServer.start();
+            target = new InetSocketAddress("localhost", echoServer.getPort());
+            parameters.put("mode", "echo");
+            LOGGER.info("Started in process echo server on port " + target.getPort() + ".");
+        }
+        try {
+            new LoadGenerator(parameters, target).run(Long.parseLong(parameters.getOrDefault("duration", "30")));
+        } finally {
+            if (echoServer != null) {
+                echoServer.close();
+            }
+        }
+    }
+
+}
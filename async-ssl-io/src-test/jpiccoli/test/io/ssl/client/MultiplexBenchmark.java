@@ -0,0 +1,176 @@
+package jpiccoli.test.io.ssl.client;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousServerSocketChannel;
+import java.nio.channels.AsynchronousSocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.TrustManager;
+import jpiccoli.io.ssl.AsynchronousSSLChannel;
+import jpiccoli.io.ssl.IOHandlerBuilder;
+import jpiccoli.io.ssl.MultiplexedChannel;
+import jpiccoli.io.ssl.MultiplexedStream;
+import jpiccoli.test.io.ssl.server.SimpleHttpsServer;
+
+/**
+ * Measures the throughput of many {@link MultiplexedStream}s sharing a single TLS connection over loopback,
+ * and how evenly it is spread among them. Each stream sends a payload to an in-process echo server and reads
+ * it back, over and over, until the time is up.
+ * Usage: {@code MultiplexBenchmark [streams] [seconds] [payloadSize] [maxFrameSize]}.
+ */
+public class MultiplexBenchmark {
+
+    private static final Logger LOGGER = Logger.getLogger(MultiplexBenchmark.class.getName());
+
+    private final ExecutorService executorService;
+    private final SSLContext serverContext;
+    private final SSLContext clientContext;
+    private final AsynchronousServerSocketChannel server;
+    private final int maxFrameSize;
+
+    private MultiplexBenchmark(final int maxFrameSize) throws Exception {
+        this.maxFrameSize = maxFrameSize;
+        executorService = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+        serverContext = SimpleHttpsServer.createSSLContext();
+        clientContext = SSLContext.getInstance("TLS");
+        clientContext.init(null, new TrustManager[] {new DummyTrustManager()}, null);
+        server = AsynchronousServerSocketChannel.open().bind(new InetSocketAddress("localhost", 0));
+    }
+
+    private void startServer() {
+        server.accept(null, IOHandlerBuilder.buildCompletionHandler((AsynchronousSocketChannel socket, Void ignored) -> {
+            startServer();
+            try {
+                socket.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            } catch (IOException e) {
+                LOGGER.log(Level.FINE, "Error configuring socket", e);
+            }
+            SSLEngine engine = serverContext.createSSLEngine();
+            engine.setUseClientMode(false);
+            AsynchronousSSLChannel channel = new AsynchronousSSLChannel(socket, engine, executorService);
+            MultiplexedChannel multiplexer = new MultiplexedChannel(channel, false, stream -> echo(stream, ByteBuffer.allocate(maxFrameSize)),
+                MultiplexedChannel.DEFAULT_WINDOW_SIZE, maxFrameSize);
+            multiplexer.start();
+        }));
+    }
+
+    private static void echo(final MultiplexedStream stream, final ByteBuffer buffer) {
+        buffer.clear();
+        stream.read(buffer, null, IOHandlerBuilder.buildCompletionHandler((Integer result, Void ignored) -> {
+            if (result < 0) {
+                closeStream(stream);
+                return;
+            }
+            buffer.flip();
+            writeFully(stream, buffer, () -> echo(stream, buffer));
+        }, (Throwable exc, Void ignored) -> closeStream(stream)));
+    }
+
+    private static void writeFully(final MultiplexedStream stream, final ByteBuffer buffer, final Runnable next) {
+        stream.write(buffer, null, IOHandlerBuilder.buildCompletionHandler((Integer result, Void ignored) -> {
+            if (buffer.hasRemaining()) {
+                writeFully(stream, buffer, next);
+            } else {
+                next.run();
+            }
+        }, (Throwable exc, Void ignored) -> closeStream(stream)));
+    }
+
+    private static void closeStream(final MultiplexedStream stream) {
+        try {
+            stream.close();
+        } catch (IOException e) {
+            LOGGER.log(Level.FINE, "Error closing stream", e);
+        }
+    }
+
+    private MultiplexedChannel connect() throws Exception {
+        AsynchronousSocketChannel socket = AsynchronousSocketChannel.open();
+        socket.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        socket.connect(server.getLocalAddress()).get();
+        SSLEngine engine = clientContext.createSSLEngine("localhost", 0);
+        engine.setUseClientMode(true);
+        AsynchronousSSLChannel channel = new AsynchronousSSLChannel(socket, engine, executorService);
+        MultiplexedChannel multiplexer = new MultiplexedChannel(channel, true, stream -> closeStream(stream),
+            MultiplexedChannel.DEFAULT_WINDOW_SIZE, maxFrameSize);
+        multiplexer.start();
+        return multiplexer;
+    }
+
+    /**
+     * Sends the payload and reads it back until the deadline.
+     * @return The number of bytes echoed.
+     */
+    private static long runStream(final MultiplexedStream stream, final int payloadSize, final long deadline) throws Exception {
+        ByteBuffer request = ByteBuffer.allocate(payloadSize);
+        ByteBuffer response = ByteBuffer.allocate(payloadSize);
+        long transferred = 0;
+        while (System.nanoTime() < deadline) {
+            request.clear();
+            while (request.hasRemaining()) {
+                stream.write(request).get();
+            }
+            response.clear();
+            while (response.hasRemaining()) {
+                if (stream.read(response).get() < 0) {
+                    throw new IOException("Stream " + stream.getId() + " closed by the server");
+                }
+            }
+            transferred += payloadSize;
+        }
+        stream.close();
+        return transferred;
+    }
+
+    public static void main(String[] args) throws Exception {
+        int streamCount = args.length > 0 ? Integer.parseInt(args[0]) : 16;
+        long seconds = args.length > 1 ? Long.parseLong(args[1]) : 10;
+        int payloadSize = args.length > 2 ? Integer.parseInt(args[2]) : 1024 * 16;
+        int maxFrameSize = args.length > 3 ? Integer.parseInt(args[3]) : MultiplexedChannel.DEFAULT_MAX_FRAME_SIZE;
+        if (payloadSize > MultiplexedChannel.DEFAULT_WINDOW_SIZE) {
+            // A larger payload would fill the windows of both directions before the echo is read, and stall.
+            throw new IllegalArgumentException("The payload size must not exceed the window size: " + MultiplexedChannel.DEFAULT_WINDOW_SIZE);
+        }
+        MultiplexBenchmark benchmark = new MultiplexBenchmark(maxFrameSize);
+        benchmark.startServer();
+        MultiplexedChannel multiplexer = benchmark.connect();
+        ExecutorService clients = Executors.newFixedThreadPool(streamCount);
+        long start = System.nanoTime();
+        long deadline = start + TimeUnit.SECONDS.toNanos(seconds);
+        List<Future<Long>> results = new ArrayList<>();
+        for (int i = 0; i < streamCount; i++) {
+            MultiplexedStream stream = multiplexer.openStream();
+            results.add(clients.submit(() -> runStream(stream, payloadSize, deadline)));
+        }
+        long total = 0;
+        long min = Long.MAX_VALUE;
+        long max = 0;
+        for (Future<Long> result : results) {
+            long transferred = result.get();
+            total += transferred;
+            min = Math.min(min, transferred);
+            max = Math.max(max, transferred);
+        }
+        double elapsedSeconds = (System.nanoTime() - start) / 1e9;
+        System.out.println(String.format("%d streams, %d byte payloads, %d byte frames: %.1f MB/s echoed, per stream %.1f to %.1f MB/s",
+            streamCount, payloadSize, maxFrameSize, total / elapsedSeconds / (1024 * 1024),
+            min / elapsedSeconds / (1024 * 1024), max / elapsedSeconds / (1024 * 1024)));
+        multiplexer.close();
+        clients.shutdownNow();
+        benchmark.executorService.shutdownNow();
+        benchmark.server.close();
+    }
+
+}
@@ -0,0 +1,259 @@
+package jpiccoli.test.io.ssl.client;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousSocketChannel;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.TrustManager;
+import jpiccoli.io.ssl.AsynchronousSSLChannel;
+import jpiccoli.io.ssl.AsynchronousSSLChannelBuilder;
+import jpiccoli.io.ssl.AsynchronousSSLChannelBuilder.Profile;
+import jpiccoli.io.ssl.BufferAllocator;
+import jpiccoli.io.ssl.DirectBufferAllocator;
+import jpiccoli.test.io.ssl.server.SimpleEchoServer;
+
+/**
+ * Compares the {@link AsynchronousSSLChannelBuilder} profiles over loopback, against an in process
+ * echo server configured with the same profile. For each profile it reports the buffer memory held per
+ * idle connection, the handshake time, the round trip latency of small requests, the time to the first and
+ * last byte of a 64 KB echo, and the bulk throughput.
+ * <p>
+ * The memory figure is the capacity of the buffers each channel has obtained from its {@link BufferAllocator}
+ * and not yet released, counted by a wrapper around the allocator of the builder. It does not depend on
+ * when the garbage collector frees direct buffers, nor on whether the allocator pools or shares them, and it
+ * does not include the memory of the SSLEngines or of the sockets.
+ * <p>
+ * Parameters are given as {@code name=value} arguments:
+ * <ul>
+ * <li>{@code profiles}: comma separated profile names, {@code DEFAULT} standing for a plain builder (default: all).</li>
+ * <li>{@code connections}: idle connections opened for the memory and handshake measurements (default 200).</li>
+ * <li>{@code requests}: small requests sent for the latency measurement (default 5000).</li>
+ * <li>{@code requestSize}: size of the small requests (default 256).</li>
+ * <li>{@code bulk}: megabytes echoed for the throughput measurement (default 256).</li>
+ * <li>{@code rounds}: number of times all profiles are measured, the first round including the JIT warm up (default 2).</li>
+ * <li>{@code recordSize}, {@code bufferSize}, {@code asyncDispatch}: override the setting of every profile.</li>
+ * </ul>
+ */
+public class ProfileBenchmark {
+
+    private static final int LARGE_RESPONSE_SIZE = 1024 * 64;
+    private static final int LARGE_RESPONSE_COUNT = 500;
+    private static final int BULK_WRITE_SIZE = 1024 * 1024;
+    // The destination of each read must be able to hold the plaintext of a whole record.
+    private static final int RESPONSE_BUFFER_SIZE = 1024 * 32;
+
+    private final Map<String, String> parameters;
+    private final SSLContext sslContext;
+    private final ExecutorService executorService;
+
+    private ProfileBenchmark(final Map<String, String> parameters) throws GeneralSecurityException {
+        this.parameters = parameters;
+        sslContext = SSLContext.getInstance("TLS");
+        sslContext.init(null, new TrustManager[] {new DummyTrustManager()}, null);
+        executorService = Executors.newCachedThreadPool();
+    }
+
+    private AsynchronousSSLChannelBuilder createBuilder(final String profileName, final BufferAllocator allocator) {
+        AsynchronousSSLChannelBuilder builder = "DEFAULT".equals(profileName) ? new AsynchronousSSLChannelBuilder()
+            : AsynchronousSSLChannelBuilder.forProfile(Profile.valueOf(profileName));
+        builder.setAllocator(allocator);
+        if (parameters.containsKey("recordSize")) {
+            builder.setRecordSize(Integer.parseInt(parameters.get("recordSize")));
+        }
+        if (parameters.containsKey("bufferSize")) {
+            int bufferSize = Integer.parseInt(parameters.get("bufferSize"));
+            builder.setBufferSizes(bufferSize, bufferSize);
+        }
+        if (parameters.containsKey("asyncDispatch")) {
+            builder.setAsyncDispatch(Boolean.parseBoolean(parameters.get("asyncDispatch")));
+        }
+        return builder;
+    }
+
+    private void run(final String profileName) throws Exception {
+        CountingAllocator allocator = new CountingAllocator(DirectBufferAllocator.INSTANCE);
+        AsynchronousSSLChannelBuilder builder = createBuilder(profileName, allocator);
+        try (SimpleEchoServer server = new SimpleEchoServer(0, builder)) {
+            server.start();
+            InetSocketAddress target = new InetSocketAddress("localhost", server.getPort());
+            int connections = Integer.parseInt(parameters.getOrDefault("connections", "200"));
+            int requests = Integer.parseInt(parameters.getOrDefault("requests", "5000"));
+            int requestSize = Integer.parseInt(parameters.getOrDefault("requestSize", "256"));
+            long bulkBytes = Long.parseLong(parameters.getOrDefault("bulk", "256")) * 1024 * 1024;
+
+            long allocatedBefore = allocator.getAllocated();
+            long handshakeStart = System.nanoTime();
+            List<AsynchronousSSLChannel> idleChannels = new ArrayList<>(connections);
+            for (int i = 0; i < connections; i++) {
+                AsynchronousSSLChannel channel = connect(builder, target);
+                exchange(channel, ByteBuffer.allocate(1), ByteBuffer.allocate(RESPONSE_BUFFER_SIZE));
+                idleChannels.add(channel);
+            }
+            long handshakeNanos = (System.nanoTime() - handshakeStart) / connections;
+            // Both ends of each connection live in this process.
+            long memoryPerChannel = (allocator.getAllocated() - allocatedBefore) / (connections * 2L);
+            for (AsynchronousSSLChannel channel : idleChannels) {
+                channel.close();
+            }
+
+            LatencyHistogram requestLatency = new LatencyHistogram();
+            try (AsynchronousSSLChannel channel = connect(builder, target)) {
+                ByteBuffer request = ByteBuffer.allocate(requestSize);
+                ByteBuffer response = ByteBuffer.allocate(RESPONSE_BUFFER_SIZE);
+                for (int i = 0; i < requests; i++) {
+                    long start = System.nanoTime();
+                    exchange(channel, request, response);
+                    requestLatency.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start));
+                }
+            }
+
+            LatencyHistogram firstByteLatency = new LatencyHistogram();
+            LatencyHistogram lastByteLatency = new LatencyHistogram();
+            try (AsynchronousSSLChannel channel = connect(builder, target)) {
+                ByteBuffer request = ByteBuffer.allocate(LARGE_RESPONSE_SIZE);
+                ByteBuffer response = ByteBuffer.allocate(RESPONSE_BUFFER_SIZE);
+                for (int i = 0; i < LARGE_RESPONSE_COUNT; i++) {
+                    long start = System.nanoTime();
+                    request.clear();
+                    Future<?> write = executorService.submit(() -> writeFully(channel, request));
+                    response.clear();
+                    int received = readSome(channel, response);
+                    firstByteLatency.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start));
+                    while (received < LARGE_RESPONSE_SIZE) {
+                        response.clear();
+                        received += readSome(channel, response);
+                    }
+                    lastByteLatency.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start));
+                    write.get();
+                }
+            }
+
+            double throughput;
+            try (AsynchronousSSLChannel channel = connect(builder, target)) {
+                long start = System.nanoTime();
+                Future<?> writer = executorService.submit(() -> {
+                    ByteBuffer buffer = ByteBuffer.allocateDirect(BULK_WRITE_SIZE);
+                    for (long written = 0; written < bulkBytes; written += BULK_WRITE_SIZE) {
+                        buffer.clear();
+                        writeFully(channel, buffer);
+                    }
+                    return null;
+                });
+                ByteBuffer buffer = ByteBuffer.allocateDirect(BULK_WRITE_SIZE);
+                for (long read = 0; read < bulkBytes;) {
+                    buffer.clear();
+                    read += readSome(channel, buffer);
+                }
+                writer.get();
+                throughput = bulkBytes / ((System.nanoTime() - start) / 1e9) / (1024 * 1024);
+            }
+
+            System.out.println(String.format("%-11s %10d %13.2f %8d %8d %9d %9d %8.1f", profileName, memoryPerChannel / 1024,
+                handshakeNanos / 1e6, requestLatency.getValueAtPercentile(50), requestLatency.getValueAtPercentile(99),
+                firstByteLatency.getValueAtPercentile(50), lastByteLatency.getValueAtPercentile(50), throughput));
+        }
+    }
+
+    private AsynchronousSSLChannel connect(final AsynchronousSSLChannelBuilder builder, final InetSocketAddress target)
+            throws IOException, InterruptedException, ExecutionException {
+        AsynchronousSocketChannel socket = AsynchronousSocketChannel.open();
+        socket.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        socket.connect(target).get();
+        SSLEngine engine = sslContext.createSSLEngine(target.getHostString(), target.getPort());
+        engine.setUseClientMode(true);
+        return builder.build(socket, engine, executorService);
+    }
+
+    private static void exchange(final AsynchronousSSLChannel channel, final ByteBuffer request, final ByteBuffer response)
+            throws IOException, InterruptedException, ExecutionException {
+        request.clear();
+        writeFully(channel, request);
+        for (int received = 0; received < request.capacity();) {
+            response.clear();
+            received += readSome(channel, response);
+        }
+    }
+
+    private static Void writeFully(final AsynchronousSSLChannel channel, final ByteBuffer buffer)
+            throws InterruptedException, ExecutionException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer).get();
+        }
+        return null;
+    }
+
+    private static int readSome(final AsynchronousSSLChannel channel, final ByteBuffer buffer)
+            throws IOException, InterruptedException, ExecutionException {
+        int result = channel.read(buffer).get();
+        if (result < 0) {
+            throw new IOException("Connection closed by the server");
+        }
+        return result;
+    }
+
+    /**
+     * Keeps track of the capacity of the buffers handed out by another allocator and not released yet.
+     */
+    private static class CountingAllocator implements BufferAllocator {
+
+        private final BufferAllocator delegate;
+        private final AtomicLong allocated;
+
+        CountingAllocator(final BufferAllocator delegate) {
+            this.delegate = delegate;
+            allocated = new AtomicLong();
+        }
+
+        @Override
+        public ByteBuffer allocate(final int capacity) {
+            ByteBuffer buffer = delegate.allocate(capacity);
+            allocated.addAndGet(buffer.capacity());
+            return buffer;
+        }
+
+        @Override
+        public void release(final ByteBuffer buffer) {
+            allocated.addAndGet(-buffer.capacity());
+            delegate.release(buffer);
+        }
+
+        long getAllocated() {
+            return allocated.get();
+        }
+
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> parameters = new HashMap<>();
+        for (String arg : args) {
+            int separator = arg.indexOf('=');
+            parameters.put(arg.substring(0, separator), arg.substring(separator + 1));
+        }
+        ProfileBenchmark benchmark = new ProfileBenchmark(parameters);
+        int rounds = Integer.parseInt(parameters.getOrDefault("rounds", "2"));
+        for (int round = 1; round <= rounds; round++) {
+            System.out.println("Round " + round + (round == 1 ? " (includes JIT warm up)" : ""));
+            System.out.println("profile     memory(KB) handshake(ms) p50(us)  p99(us) 64KB-first 64KB-last     MB/s");
+            for (String profileName : parameters.getOrDefault("profiles", "DEFAULT,LOW_MEMORY,LOW_LATENCY,BULK").split(",")) {
+                benchmark.run(profileName);
+            }
+        }
+        benchmark.executorService.shutdownNow();
+    }
+
+}
@@ -0,0 +1,27 @@
+package jpiccoli.test.io.ssl.server;
+
+class HttpRequest {
+
+    private final String method;
+    private final String path;
+    private final boolean keepAlive;
+
+    HttpRequest(final String method, final String path, final boolean keepAlive) {
+        this.method = method;
+        this.path = path;
+        this.keepAlive = keepAlive;
+    }
+
+    String getMethod() {
+        return method;
+    }
+
+    String getPath() {
+        return path;
+    }
+
+    boolean isKeepAlive() {
+        return keepAlive;
+    }
+
+}
@@ -0,0 +1,145 @@
+package jpiccoli.test.io.ssl.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Incremental parser for the header section of HTTP requests. Bytes already scanned are
+ * never scanned again when more data arrives, and several pipelined requests may be
+ * extracted from the same buffer by calling {@code parse} repeatedly.
+ */
+class HttpRequestParser {
+
+    private static final byte CR = '\r';
+    private static final byte LF = '\n';
+    private static final byte[] CONNECTION = "connection:".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] CLOSE = "close".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] KEEP_ALIVE = "keep-alive".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] HTTP_1_0 = "http/1.0".getBytes(StandardCharsets.US_ASCII);
+
+    private final int maxHeaderSize;
+
+    // Number of bytes after the buffer position which have already been scanned
+    // and how many bytes of the CR LF CR LF terminator were matched so far.
+    private int scanned;
+    private int matched;
+
+    HttpRequestParser(final int maxHeaderSize) {
+        this.maxHeaderSize = maxHeaderSize;
+    }
+
+    /**
+     * Tries to extract a request from the buffer. On success, the buffer position is moved past the
+     * request header. Otherwise the buffer is left untouched and the scan resumes where it stopped on
+     * the next call, which must be given the same data preceded by the same bytes (compacting is fine).
+     * @param buffer Buffer in read mode containing the received bytes.
+     * @return The parsed request, or null if the header is not complete yet.
+     * @throws IOException If the request is malformed or its header is too large.
+     */
+    HttpRequest parse(final ByteBuffer buffer) throws IOException {
+        int start = buffer.position();
+        int limit = buffer.limit();
+        for (int index = start + scanned; index < limit; index++) {
+            byte b = buffer.get(index);
+            if (b == (matched % 2 == 0 ? CR : LF)) {
+                matched++;
+            } else {
+                matched = b == CR ? 1 : 0;
+            }
+            if (matched == 4) {
+                int end = index + 1;
+                scanned = 0;
+                matched = 0;
+                HttpRequest request = parseHeader(buffer, start, end);
+                buffer.position(end);
+                return request;
+            }
+        }
+        scanned = limit - start;
+        if (scanned > maxHeaderSize) {
+            throw new IOException("Request header too large");
+        }
+        return null;
+    }
+
+    private static HttpRequest parseHeader(final ByteBuffer buffer, final int start, final int end) throws IOException {
+        int lineEnd = indexOf(buffer, start, end, CR);
+        int firstSpace = indexOf(buffer, start, lineEnd, (byte) ' ');
+        int lastSpace = lastIndexOf(buffer, start, lineEnd, (byte) ' ');
+        if (firstSpace < 0 || lastSpace <= firstSpace) {
+            throw new IOException("Malformed request line");
+        }
+        String method = ascii(buffer, start, firstSpace);
+        String path = ascii(buffer, firstSpace + 1, lastSpace);
+        boolean keepAlive = !regionMatches(buffer, lastSpace + 1, lineEnd, HTTP_1_0);
+        int lineStart = lineEnd + 2;
+        while (lineStart < end - 2) {
+            lineEnd = indexOf(buffer, lineStart, end, CR);
+            if (regionMatches(buffer, lineStart, lineEnd, CONNECTION)) {
+                int valueStart = skipSpaces(buffer, lineStart + CONNECTION.length, lineEnd);
+                if (regionMatches(buffer, valueStart, lineEnd, CLOSE)) {
+                    keepAlive = false;
+                } else if (regionMatches(buffer, valueStart, lineEnd, KEEP_ALIVE)) {
+                    keepAlive = true;
+                }
+            }
+            lineStart = lineEnd + 2;
+        }
+        return new HttpRequest(method, path, keepAlive);
+    }
+
+    private static int indexOf(final ByteBuffer buffer, final int from, final int to, final byte value) {
+        for (int index = from; index < to; index++) {
+            if (buffer.get(index) == value) {
+                return index;
+            }
+        }
+        return -1;
+    }
+
+    private static int lastIndexOf(final ByteBuffer buffer, final int from, final int to, final byte value) {
+        for (int index = to - 1; index >= from; index--) {
+            if (buffer.get(index) == value) {
+                return index;
+            }
+        }
+        return -1;
+    }
+
+    private static int skipSpaces(final ByteBuffer buffer, final int from, final int to) {
+        int index = from;
+        while (index < to && (buffer.get(index) == ' ' || buffer.get(index) == '\t')) {
+            index++;
+        }
+        return index;
+    }
+
+    /**
+     * Case insensitive comparison of the start of a region with a lower case ASCII token.
+     */
+    private static boolean regionMatches(final ByteBuffer buffer, final int from, final int to, final byte[] token) {
+        if (to - from < token.length) {
+            return false;
+        }
+        for (int i = 0; i < token.length; i++) {
+            byte b = buffer.get(from + i);
+            if (b >= 'A' && b <= 'Z') {
+                b += 'a' - 'A';
+            }
+            if (b != token[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static String ascii(final ByteBuffer buffer, final int from, final int to) {
+        byte[] bytes = new byte[to - from];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = buffer.get(from + i);
+        }
+        return new String(bytes, StandardCharsets.US_ASCII);
+    }
+
+}
@@ -0,0 +1,217 @@
+package jpiccoli.test.io.ssl.server;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousServerSocketChannel;
+import java.nio.channels.AsynchronousSocketChannel;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.TrustManagerFactory;
+import jpiccoli.io.ssl.AsynchronousSSLChannel;
+import jpiccoli.io.ssl.IOHandlerBuilder;
+import jpiccoli.io.ssl.TlsRelay;
+
+/**
+ * Measures the throughput of {@link TlsRelay} entirely over loopback: TLS clients send bulk data through
+ * the relay to a plaintext echo backend and read it back. The connections negotiate TLS 1.3, so the half close
+ * at the end of each one lets the relay deliver the rest of the echo after the client's close_notify.
+ * Usage: {@code RelayBenchmark [connections] [seconds] [payloadSize]}.
+ */
+public class RelayBenchmark {
+
+    private static final Logger LOGGER = Logger.getLogger(RelayBenchmark.class.getName());
+
+    private final ExecutorService executorService;
+    private final SSLContext serverContext;
+    private final SSLContext clientContext;
+    private final AsynchronousServerSocketChannel backendServer;
+    private final AsynchronousServerSocketChannel relayServer;
+    private final AtomicLong relayedBytes;
+
+    private RelayBenchmark() throws IOException, GeneralSecurityException {
+        executorService = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+        serverContext = SimpleHttpsServer.createSSLContext();
+        clientContext = createClientContext();
+        backendServer = AsynchronousServerSocketChannel.open().bind(new InetSocketAddress("localhost", 0));
+        relayServer = AsynchronousServerSocketChannel.open().bind(new InetSocketAddress("localhost", 0));
+        relayedBytes = new AtomicLong();
+    }
+
+    private static SSLContext createClientContext() throws IOException, GeneralSecurityException {
+        KeyStore trustStore = KeyStore.getInstance("JKS");
+        try (FileInputStream stream = new FileInputStream("keystore")) {
+            trustStore.load(stream, "pass123".toCharArray());
+        }
+        TrustManagerFactory trustManagerFactory = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+        trustManagerFactory.init(trustStore);
+        SSLContext sslContext = SSLContext.getInstance("TLS");
+        sslContext.init(null, trustManagerFactory.getTrustManagers(), null);
+        return sslContext;
+    }
+
+    private void startBackend() {
+        backendServer.accept(null, IOHandlerBuilder.buildCompletionHandler((AsynchronousSocketChannel socket, Void ignored) -> {
+            startBackend();
+            try {
+                socket.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            } catch (IOException e) {
+                LOGGER.log(Level.FINE, "Error configuring backend socket", e);
+            }
+            echo(socket, ByteBuffer.allocateDirect(TlsRelay.DEFAULT_BUFFER_SIZE));
+        }));
+    }
+
+    private static void echo(final AsynchronousSocketChannel socket, final ByteBuffer buffer) {
+        buffer.clear();
+        socket.read(buffer, null, IOHandlerBuilder.buildCompletionHandler((Integer result, Void ignored) -> {
+            if (result < 0) {
+                try {
+                    socket.shutdownOutput();
+                } catch (IOException e) {
+                    LOGGER.log(Level.FINE, "Error shutting down backend output", e);
+                }
+                return;
+            }
+            buffer.flip();
+            writeFully(socket, buffer, () -> echo(socket, buffer));
+        }));
+    }
+
+    private static void writeFully(final AsynchronousSocketChannel socket, final ByteBuffer buffer, final Runnable next) {
+        socket.write(buffer, null, IOHandlerBuilder.buildCompletionHandler((Integer result, Void ignored) -> {
+            if (buffer.hasRemaining()) {
+                writeFully(socket, buffer, next);
+            } else {
+                next.run();
+            }
+        }));
+    }
+
+    private void startRelay() {
+        relayServer.accept(null, IOHandlerBuilder.buildCompletionHandler((AsynchronousSocketChannel socket, Void ignored) -> {
+            startRelay();
+            AsynchronousSocketChannel backend = null;
+            try {
+                socket.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                backend = AsynchronousSocketChannel.open();
+                backend.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                connectBackend(socket, backend);
+            } catch (IOException e) {
+                LOGGER.log(Level.SEVERE, "Error starting relay", e);
+                closeChannel(socket);
+                closeChannel(backend);
+            }
+        }));
+    }
+
+    /**
+     * Connects to the backend without blocking the accepting thread, and starts relaying once connected.
+     */
+    private void connectBackend(final AsynchronousSocketChannel socket, final AsynchronousSocketChannel backend) throws IOException {
+        backend.connect(backendServer.getLocalAddress(), null, IOHandlerBuilder.buildCompletionHandler((Void result, Void ignored) -> {
+            SSLEngine engine = serverContext.createSSLEngine();
+            engine.setUseClientMode(false);
+            AsynchronousSSLChannel client = new AsynchronousSSLChannel(socket, engine, executorService);
+            TlsRelay relay = new TlsRelay(client, backend);
+            relay.setCloseListener(closedRelay -> relayedBytes.addAndGet(closedRelay.getClientToBackendBytes() + closedRelay.getBackendToClientBytes()));
+            relay.start();
+        }, (Throwable exc, Void ignored) -> {
+            LOGGER.log(Level.SEVERE, "Error connecting to backend", exc);
+            closeChannel(socket);
+            closeChannel(backend);
+        }));
+    }
+
+    private static void closeChannel(final AsynchronousSocketChannel channel) {
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                LOGGER.log(Level.FINE, "Error closing channel", e);
+            }
+        }
+    }
+
+    /**
+     * Sends and receives data through the relay until the deadline, then half closes the connection and waits for the echo to drain.
+     */
+    private long runClient(final int payloadSize, final long deadline) throws Exception {
+        AsynchronousSocketChannel socket = AsynchronousSocketChannel.open();
+        socket.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        socket.connect(relayServer.getLocalAddress()).get();
+        SSLEngine engine = clientContext.createSSLEngine("localhost", 0);
+        engine.setUseClientMode(true);
+        AsynchronousSSLChannel channel = new AsynchronousSSLChannel(socket, engine, executorService);
+        ByteBuffer request = ByteBuffer.allocateDirect(payloadSize);
+        // Each read must leave room for a whole record, which a buffer filled up to the payload size would not.
+        ByteBuffer response = ByteBuffer.allocateDirect(Math.max(payloadSize, engine.getSession().getApplicationBufferSize()));
+        long transferred = 0;
+        while (System.nanoTime() < deadline) {
+            request.clear();
+            while (request.hasRemaining()) {
+                channel.write(request).get();
+            }
+            for (int received = 0; received < payloadSize;) {
+                response.clear();
+                int result = channel.read(response).get();
+                if (result < 0) {
+                    throw new IOException("Relay closed the connection");
+                }
+                received += result;
+            }
+            transferred += payloadSize * 2L;
+        }
+        channel.shutdownOutput();
+        response.clear();
+        while (channel.read(response).get() >= 0) {
+            response.clear();
+        }
+        channel.close();
+        return transferred;
+    }
+
+    public static void main(String[] args) throws Exception {
+        int connections = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+        long seconds = args.length > 1 ? Long.parseLong(args[1]) : 10;
+        int payloadSize = args.length > 2 ? Integer.parseInt(args[2]) : 1024 * 64;
+        RelayBenchmark benchmark = new RelayBenchmark();
+        benchmark.startBackend();
+        benchmark.startRelay();
+        ExecutorService clients = Executors.newFixedThreadPool(connections);
+        long start = System.nanoTime();
+        long deadline = start + TimeUnit.SECONDS.toNanos(seconds);
+        List<Future<Long>> results = new ArrayList<>();
+        for (int i = 0; i < connections; i++) {
+            results.add(clients.submit(() -> benchmark.runClient(payloadSize, deadline)));
+        }
+        long transferred = 0;
+        for (Future<Long> result : results) {
+            transferred += result.get();
+        }
+        double elapsedSeconds = (System.nanoTime() - start) / 1e9;
+        // Relays report their counters when they close, shortly after the clients are done.
+        TimeUnit.MILLISECONDS.sleep(500);
+        System.out.println(String.format("%d connections, %d byte payloads: client throughput %.1f MB/s, relayed %.1f MB/s",
+            connections, payloadSize, transferred / elapsedSeconds / (1024 * 1024), benchmark.relayedBytes.get() / elapsedSeconds / (1024 * 1024)));
+        clients.shutdownNow();
+        benchmark.executorService.shutdownNow();
+        benchmark.backendServer.close();
+        benchmark.relayServer.close();
+    }
+
+}
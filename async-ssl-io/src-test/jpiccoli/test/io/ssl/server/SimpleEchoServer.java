@@ -0,0 +1,246 @@
+package jpiccoli.test.io.ssl.server;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousByteChannel;
+import java.nio.channels.AsynchronousServerSocketChannel;
+import java.nio.channels.AsynchronousSocketChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.security.GeneralSecurityException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import jpiccoli.io.ssl.AsynchronousSSLChannelBuilder;
+import jpiccoli.io.ssl.EventLoopGroup;
+import jpiccoli.io.ssl.IOHandlerBuilder;
+import jpiccoli.io.ssl.SSLEnginePool;
+import jpiccoli.io.ssl.SSLWarmUp;
+
+/**
+ * TLS server which writes back everything it receives. Used as a target for the load generator.
+ * Its connections run either over AsynchronousSocketChannels or, when given an {@link EventLoopGroup},
+ * over the Selector driven loops of the group.
+ * Usage: {@code SimpleEchoServer [port] [warmUpHandshakes] [async|selector]}.
+ */
+public class SimpleEchoServer implements Closeable {
+
+	private static final Logger LOGGER = Logger.getLogger(SimpleEchoServer.class.getName());
+	private static final int DEFAULT_PORT = 8443;
+	private static final int BUFFER_SIZE = 1024 * 16;
+	private static final int WARM_UP_ENGINE_POOL_SIZE = 64;
+
+    private final ExecutorService executorService;
+    private final SSLContext sslContext;
+    private final AsynchronousServerSocketChannel serverSocketChannel;
+    private final ServerSocketChannel selectorServerSocketChannel;
+    private final EventLoopGroup eventLoopGroup;
+    private final AsynchronousSSLChannelBuilder channelBuilder;
+    private volatile SSLEnginePool enginePool;
+
+    public SimpleEchoServer(final int port) throws IOException, GeneralSecurityException {
+        this(port, new AsynchronousSSLChannelBuilder());
+    }
+
+    public SimpleEchoServer(final int port, final AsynchronousSSLChannelBuilder channelBuilder) throws IOException, GeneralSecurityException {
+        this(port, channelBuilder, null);
+    }
+
+    /**
+     * Constructor.
+     * @param port The port to listen on, 0 for any free port.
+     * @param channelBuilder The configuration of the channels of accepted connections.
+     * @param eventLoopGroup The event loops performing the IO of accepted connections, or null for running them
+     * over AsynchronousSocketChannels. The server closes the group when it is closed.
+     * @throws IOException If the server socket cannot be opened.
+     * @throws GeneralSecurityException If the SSLContext cannot be initialized.
+     */
+    public SimpleEchoServer(final int port, final AsynchronousSSLChannelBuilder channelBuilder, final EventLoopGroup eventLoopGroup)
+            throws IOException, GeneralSecurityException {
+        this.channelBuilder = channelBuilder;
+        this.eventLoopGroup = eventLoopGroup;
+        executorService = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+        sslContext = SimpleHttpsServer.createSSLContext();
+        if (eventLoopGroup != null) {
+            serverSocketChannel = null;
+            selectorServerSocketChannel = ServerSocketChannel.open();
+            selectorServerSocketChannel.bind(new InetSocketAddress(port), 1024);
+        } else {
+            selectorServerSocketChannel = null;
+            serverSocketChannel = AsynchronousServerSocketChannel.open();
+            serverSocketChannel.bind(new InetSocketAddress(port), 1024);
+        }
+    }
+
+    public int getPort() throws IOException {
+        InetSocketAddress address = (InetSocketAddress) (eventLoopGroup != null ? selectorServerSocketChannel.getLocalAddress()
+            : serverSocketChannel.getLocalAddress());
+        return address.getPort();
+    }
+
+    /**
+     * Warms up the TLS stack with in-memory connections and pre-creates engines for the acceptor. To be called before {@code start}.
+     * @param handshakeCount The number of warm up connections.
+     * @param enginePoolSize The number of engines kept ready for accepted connections.
+     * @return The number of warm up connections which completed.
+     * @throws GeneralSecurityException If the client side of the warm up cannot be initialized.
+     */
+    public int warmUp(final int handshakeCount, final int enginePoolSize) throws GeneralSecurityException {
+        int completed = new SSLWarmUp(sslContext, channelBuilder, executorService).setHandshakeCount(handshakeCount).run();
+        if (enginePoolSize > 0) {
+            enginePool = new SSLEnginePool(this::createEngine, enginePoolSize, executorService).fill();
+        }
+        return completed;
+    }
+
+    public void start() {
+        if (eventLoopGroup != null) {
+            Thread acceptor = new Thread(this::acceptLoop, "echo-acceptor");
+            acceptor.setDaemon(true);
+            acceptor.start();
+        } else {
+            serverSocketChannel.accept(null, IOHandlerBuilder.buildCompletionHandler(this::accepted, this::acceptFailed));
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            if (eventLoopGroup != null) {
+                selectorServerSocketChannel.close();
+                eventLoopGroup.close();
+            } else {
+                serverSocketChannel.close();
+            }
+        } finally {
+            executorService.shutdownNow();
+        }
+    }
+
+    /**
+     * Accepts the connections of the selector transport, which has no asynchronous accept, on a thread of its own.
+     */
+    private void acceptLoop() {
+        while (selectorServerSocketChannel.isOpen()) {
+            SocketChannel socket;
+            try {
+                socket = selectorServerSocketChannel.accept();
+            } catch (IOException e) {
+                acceptFailed(e, null);
+                continue;
+            }
+            try {
+                socket.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                new EchoHandler(eventLoopGroup.registerSSL(socket, acquireEngine(), channelBuilder)).read();
+            } catch (IOException e) {
+                LOGGER.log(Level.FINE, "Error registering connection", e);
+                closeSocket(socket);
+            }
+        }
+    }
+
+    private static void closeSocket(final SocketChannel socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            LOGGER.log(Level.FINE, "Error closing socket", e);
+        }
+    }
+
+    private void accepted(final AsynchronousSocketChannel socket, final Void ignored) {
+        serverSocketChannel.accept(null, IOHandlerBuilder.buildCompletionHandler(this::accepted, this::acceptFailed));
+        try {
+            // Echoed responses are often written in several parts, which Nagle's algorithm would delay.
+            socket.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        } catch (IOException e) {
+            LOGGER.log(Level.FINE, "Error configuring socket", e);
+        }
+        new EchoHandler(channelBuilder.build(socket, acquireEngine(), executorService)).read();
+    }
+
+    private SSLEngine acquireEngine() {
+        SSLEnginePool pool = enginePool;
+        return pool != null ? pool.acquire() : createEngine();
+    }
+
+    private SSLEngine createEngine() {
+        SSLEngine engine = sslContext.createSSLEngine();
+        engine.setUseClientMode(false);
+        return engine;
+    }
+
+    private void acceptFailed(final Throwable exc, final Void ignored) {
+        if (eventLoopGroup != null ? selectorServerSocketChannel.isOpen() : serverSocketChannel.isOpen()) {
+            LOGGER.log(Level.SEVERE, "Error accepting connection", exc);
+        }
+    }
+
+    private static class EchoHandler {
+
+        private final AsynchronousByteChannel channel;
+        private final ByteBuffer buffer;
+
+        EchoHandler(final AsynchronousByteChannel channel) {
+            this.channel = channel;
+            buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        }
+
+        void read() {
+            buffer.clear();
+            channel.read(buffer, null, IOHandlerBuilder.buildCompletionHandler(this::readCompleted, this::ioFailed));
+        }
+
+        private void readCompleted(final Integer result, final Void ignored) {
+            if (result < 0) {
+                close();
+            } else {
+                buffer.flip();
+                channel.write(buffer, null, IOHandlerBuilder.buildCompletionHandler(this::writeCompleted, this::ioFailed));
+            }
+        }
+
+        private void writeCompleted(final Integer result, final Void ignored) {
+            if (buffer.hasRemaining()) {
+                channel.write(buffer, null, IOHandlerBuilder.buildCompletionHandler(this::writeCompleted, this::ioFailed));
+            } else {
+                read();
+            }
+        }
+
+        private void ioFailed(final Throwable exc, final Void ignored) {
+            LOGGER.log(Level.FINE, "Error performing IO operation", exc);
+            close();
+        }
+
+        private void close() {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                LOGGER.log(Level.FINE, "Error closing socket", e);
+            }
+        }
+
+    }
+
+    public static void main(String[] args) throws IOException, GeneralSecurityException, InterruptedException {
+        final int port = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_PORT;
+        final int warmUpHandshakes = args.length > 1 ? Integer.parseInt(args[1]) : 0;
+        final EventLoopGroup eventLoopGroup = args.length > 2 && "selector".equals(args[2]) ? new EventLoopGroup() : null;
+        try (SimpleEchoServer server = new SimpleEchoServer(port, new AsynchronousSSLChannelBuilder(), eventLoopGroup)) {
+            if (warmUpHandshakes > 0) {
+                LOGGER.info("Warm up completed " + server.warmUp(warmUpHandshakes, WARM_UP_ENGINE_POOL_SIZE) + " connections.");
+            }
+            server.start();
+            LOGGER.info("Echo server listening on port " + server.getPort() + ".");
+            Thread.currentThread().join();
+        }
+    }
+
+}
@@ -1,73 +1,136 @@
 package jpiccoli.test.io.ssl.server;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.AsynchronousByteChannel;
 import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import jpiccoli.io.ssl.IOHandlerBuilder;
 
+/**
+ * Serves the requests received over a single connection. The connection is kept open between
+ * requests unless the client asks otherwise, and pipelined requests are answered in order.
+ */
 class SimpleHttpRequestHandler {
 
 	private static final Logger LOGGER = Logger.getLogger(SimpleHttpRequestHandler.class.getName());
-	
+
     private static final File SERVER_ROOT_DIRECTORY = new File("server_root");
-    private static final String LINE_ENDING = "\r\n";
-    private static final String REQUEST_ENDING = "\r\n\r\n";
+    private static final int MAX_REQUEST_HEADER_SIZE = 1024 * 16;
+    private static final ByteBuffer NOT_FOUND_RESPONSE = encodeEmptyResponse(404, "Not Found", false);
+    private static final ByteBuffer NOT_FOUND_CLOSING_RESPONSE = encodeEmptyResponse(404, "Not Found", true);
+    private static final ByteBuffer METHOD_NOT_ALLOWED_RESPONSE = encodeEmptyResponse(405, "Method Not Allowed", false);
+    private static final ByteBuffer METHOD_NOT_ALLOWED_CLOSING_RESPONSE = encodeEmptyResponse(405, "Method Not Allowed", true);
 
     private final AsynchronousByteChannel channel;
+    private final StaticContentCache contentCache;
+    private final HttpRequestParser requestParser;
     private final ByteBuffer incomingBuffer;
-    private final StringBuilder requestStringBuffer;
 
-    private ByteBuffer responseHeaderBuffer;
+    private HttpRequest currentRequest;
+    private ByteBuffer responseBuffer;
+    private ByteBuffer nextResponseBuffer;
     private ByteBuffer outgoingBuffer;
     private File requestedFile;
     private FileChannel fileChannel;
 
-    SimpleHttpRequestHandler(final AsynchronousByteChannel channel) {
+    SimpleHttpRequestHandler(final AsynchronousByteChannel channel, final StaticContentCache contentCache) {
         this.channel = channel;
-        incomingBuffer = ByteBuffer.allocate(1024 * 100);
-        requestStringBuffer = new StringBuilder();
+        this.contentCache = contentCache;
+        requestParser = new HttpRequestParser(MAX_REQUEST_HEADER_SIZE);
+        incomingBuffer = ByteBuffer.allocate(MAX_REQUEST_HEADER_SIZE * 2);
     }
 
     void startHandling() {
-    	LOGGER.info("Reading client request.");
+    	LOGGER.fine("Reading client request.");
         channel.read(incomingBuffer, null, IOHandlerBuilder.buildCompletionHandler(this::readCompleted, this::ioFailed));
     }
 
-    private void setResponse(final int responseCode, final File file) {
-        StringBuilder responseStringBuffer = new StringBuilder();
-        responseStringBuffer.append("HTTP/1.1 ").append(responseCode).append(" ").append(getResponseCodeDescription(responseCode)).append(LINE_ENDING);
-        if (file != null && file.exists()) {
-            this.requestedFile = file;
-            String filename = file.getName().toLowerCase();
-            if (filename.endsWith(".html") || filename.endsWith(".htm")) {
-                responseStringBuffer.append("Content-Type: text/html").append(LINE_ENDING);
+    private static ByteBuffer encodeEmptyResponse(final int responseCode, final String description, final boolean closing) {
+        String response = "HTTP/1.1 " + responseCode + " " + description + "\r\nContent-Length: 0\r\n"
+                + (closing ? "Connection: close\r\n" : "") + "\r\n";
+        ByteBuffer buffer = ByteBuffer.allocateDirect(response.length());
+        buffer.put(response.getBytes(StandardCharsets.US_ASCII)).flip();
+        return buffer.asReadOnlyBuffer();
+    }
+
+    /**
+     * Answers the next request already buffered, or reads more data from the client if there is none.
+     */
+    private void nextRequest() {
+        HttpRequest request;
+        try {
+            incomingBuffer.flip();
+            request = requestParser.parse(incomingBuffer);
+            incomingBuffer.compact();
+        } catch (IOException e) {
+            ioFailed(e, null);
+            return;
+        }
+        if (request != null) {
+            handleRequest(request);
+        } else {
+            channel.read(incomingBuffer, null, IOHandlerBuilder.buildCompletionHandler(this::readCompleted, this::ioFailed));
+        }
+    }
+
+    private void handleRequest(final HttpRequest request) {
+        currentRequest = request;
+        requestedFile = null;
+        nextResponseBuffer = null;
+        boolean keepAlive = request.isKeepAlive();
+        if ("GET".equalsIgnoreCase(request.getMethod())) {
+            String requestedFileName = request.getPath();
+            if (requestedFileName.startsWith("/")) {
+                requestedFileName = requestedFileName.substring(1);
+            }
+            File file = new File(SERVER_ROOT_DIRECTORY, requestedFileName);
+            StaticContentCache.Entry entry;
+            try {
+                entry = contentCache.get(file);
+            } catch (IOException e) {
+                ioFailed(e, null);
+                return;
+            }
+            if (entry != null) {
+                LOGGER.fine("Sending requested file contents: \"" + requestedFileName + "\".");
+                if (!entry.isComplete()) {
+                    requestedFile = file;
+                }
+                if (keepAlive) {
+                    setResponse(entry.getResponse());
+                } else {
+                    // The connection is closed after this response, which the cached response does not announce.
+                    nextResponseBuffer = entry.getContents();
+                    setResponse(entry.getClosingHeader());
+                }
             } else {
-                responseStringBuffer.append("Content-Type: application/octet-stream").append(LINE_ENDING);
+                LOGGER.fine("Sending not found for requested file: \"" + requestedFileName + "\".");
+                setResponse((keepAlive ? NOT_FOUND_RESPONSE : NOT_FOUND_CLOSING_RESPONSE).duplicate());
             }
-            responseStringBuffer.append("Content-Length: ").append(file.length()).append(LINE_ENDING);
         } else {
-            responseStringBuffer.append("Content-Length: 0").append(LINE_ENDING);
+            LOGGER.info("Invalid method: " + request.getMethod());
+            setResponse((keepAlive ? METHOD_NOT_ALLOWED_RESPONSE : METHOD_NOT_ALLOWED_CLOSING_RESPONSE).duplicate());
         }
-        responseStringBuffer.append("Connection: close").append(LINE_ENDING);
-        responseStringBuffer.append(LINE_ENDING);
-        responseHeaderBuffer = ByteBuffer.wrap(responseStringBuffer.toString().getBytes());
-        LOGGER.info("Writing response header.");
-        channel.write(responseHeaderBuffer, null, IOHandlerBuilder.buildCompletionHandler(this::headerWriteCompleted, this::ioFailed));
+    }
+
+    private void setResponse(final ByteBuffer response) {
+        responseBuffer = response;
+        channel.write(responseBuffer, null, IOHandlerBuilder.buildCompletionHandler(this::headerWriteCompleted, this::ioFailed));
     }
 
     private void startTransfer() throws IOException {
-    	if (requestedFile.exists()) {
-    		LOGGER.info("Writing requested file contents.");
-            fileChannel = new FileInputStream(requestedFile).getChannel();
+        LOGGER.fine("Writing requested file contents.");
+        fileChannel = FileChannel.open(requestedFile.toPath(), StandardOpenOption.READ);
+        if (outgoingBuffer == null) {
             outgoingBuffer = ByteBuffer.allocateDirect(1024 * 100);
-            transfer();    		
-    	}
+        }
+        transfer();
     }
 
     private void transfer() throws IOException {
@@ -77,64 +140,47 @@ class SimpleHttpRequestHandler {
             outgoingBuffer.flip();
             channel.write(outgoingBuffer, null, IOHandlerBuilder.buildCompletionHandler(this::contentWriteCompleted, this::ioFailed));
         } else {
-        	LOGGER.info("Finished transferring file contents.");
+            LOGGER.fine("Finished transferring file contents.");
             fileChannel.close();
+            fileChannel = null;
+            responseCompleted();
         }
     }
 
-    private String getResponseCodeDescription(final int responseCode) {
-        switch (responseCode) {
-            case 200:
-                return "OK";
-            case 404:
-                return "Not Found";
-            case 405:
-                return "Method Not Allowed";
-            default:
-                return "Unknown";
+    private void responseCompleted() {
+        if (currentRequest.isKeepAlive()) {
+            nextRequest();
+        } else {
+            closeChannel();
         }
     }
 
     private void readCompleted(Integer result, Void attachment) {
         if (result > 0) {
-            incomingBuffer.flip();
-            requestStringBuffer.append(new String(incomingBuffer.array(), incomingBuffer.position(), incomingBuffer.limit()));
-            if (requestStringBuffer.indexOf(REQUEST_ENDING) > -1) {
-                String firstLine = requestStringBuffer.substring(0, requestStringBuffer.indexOf(LINE_ENDING));
-                String upperCaseFirstLine = firstLine.toUpperCase();
-                if (upperCaseFirstLine.startsWith("GET ")) {
-                    String requestedFileName = firstLine.substring(firstLine.indexOf(' ') + 1, firstLine.lastIndexOf(' '));
-                    if (requestedFileName.startsWith("/")) {
-                        requestedFileName = requestedFileName.substring(1);
-                    }
-                    requestedFile = new File(SERVER_ROOT_DIRECTORY, requestedFileName);
-                    if (requestedFile.exists()) {
-                    	LOGGER.info("Sending requested file contents: \"" + requestedFileName + "\".");
-                        setResponse(200, requestedFile);
-                    } else {
-                    	LOGGER.info("Sending not found for requested file: \"" + requestedFileName + "\".");
-                        setResponse(404, null);
-                    }
-                } else {
-                	LOGGER.info("Invalid method: " + firstLine);
-                    setResponse(405, null);
-                }
-            } else {
-                incomingBuffer.clear();
-                channel.read(incomingBuffer, null, IOHandlerBuilder.buildCompletionHandler(this::readCompleted, this::ioFailed));
-            }
+            nextRequest();
+        } else if (result < 0) {
+            closeChannel();
+        } else {
+            channel.read(incomingBuffer, null, IOHandlerBuilder.buildCompletionHandler(this::readCompleted, this::ioFailed));
         }
     }
 
     private void headerWriteCompleted(Integer result, Void ignored) {
-        if (responseHeaderBuffer.hasRemaining()) {
-            channel.write(responseHeaderBuffer, null, IOHandlerBuilder.buildCompletionHandler(this::headerWriteCompleted, this::ioFailed));
+        if (responseBuffer.hasRemaining()) {
+            channel.write(responseBuffer, null, IOHandlerBuilder.buildCompletionHandler(this::headerWriteCompleted, this::ioFailed));
+        } else if (nextResponseBuffer != null && nextResponseBuffer.hasRemaining()) {
+            ByteBuffer next = nextResponseBuffer;
+            nextResponseBuffer = null;
+            setResponse(next);
         } else if (requestedFile != null) {
             try {
                 startTransfer();
             } catch (IOException e) {
             	LOGGER.log(Level.SEVERE, "Error starting file contents transference", e);
+            	ioFailed(e, null);
             }
+        } else {
+            responseCompleted();
         }
     }
 
@@ -146,17 +192,22 @@ class SimpleHttpRequestHandler {
                 transfer();
             } catch (IOException e) {
             	LOGGER.log(Level.SEVERE, "Error transferring file contents", e);
+            	ioFailed(e, null);
             }
         }
     }
 
-    private void ioFailed(Throwable exc, Void ignored) {
-    	LOGGER.log(Level.SEVERE, "Error performing IO operation", exc);
+    private void closeChannel() {
         try {
             channel.close();
         } catch (IOException e) {
         	LOGGER.log(Level.SEVERE, "Error closing socket", e);
         }
+    }
+
+    private void ioFailed(Throwable exc, Void ignored) {
+    	LOGGER.log(Level.SEVERE, "Error performing IO operation", exc);
+        closeChannel();
         if (fileChannel != null) {
             try {
                 fileChannel.close();
@@ -21,6 +21,9 @@ public class SimpleHttpsServer {
 	
 	private static final String KEYSTORE_PATH = "keystore";
 	private static final String KEYSTORE_PASS = "pass123";
+	private static final int DEFAULT_PORT = 443;
+	private static final long CACHE_SIZE = 1024 * 1024 * 64;
+	private static final long CACHE_MAX_ENTRY_SIZE = 1024 * 1024;
 	
 	private static final Logger LOGGER = Logger.getLogger(SimpleHttpsServer.class.getName());
 
@@ -29,11 +32,13 @@ public class SimpleHttpsServer {
     	LOGGER.info("Initializing.");
         final ExecutorService executorService = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
         final SSLContext sslContext = createSSLContext();
+        final StaticContentCache contentCache = new StaticContentCache(CACHE_SIZE, CACHE_MAX_ENTRY_SIZE);
+        final int port = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_PORT;
 
         LOGGER.info("SSL context creation complete. Opening server socket.");
         try (AsynchronousServerSocketChannel serverSocketChannel = AsynchronousServerSocketChannel.open()) {
-            serverSocketChannel.bind(new InetSocketAddress(443));
-            LOGGER.info("Socket bound to port 443. Awaiting connections.");
+            serverSocketChannel.bind(new InetSocketAddress(port));
+            LOGGER.info("Socket bound to port " + port + ". Awaiting connections.");
             while(!Thread.interrupted()) {
                 AsynchronousSocketChannel socket = serverSocketChannel.accept().get();
                 SSLEngine engine = sslContext.createSSLEngine();
@@ -41,7 +46,7 @@ public class SimpleHttpsServer {
                 engine.setNeedClientAuth(false);
                 engine.setWantClientAuth(false);
                 AsynchronousSSLChannel sslSocket = new AsynchronousSSLChannel(socket, engine, executorService);
-                SimpleHttpRequestHandler requestHandler = new SimpleHttpRequestHandler(sslSocket);
+                SimpleHttpRequestHandler requestHandler = new SimpleHttpRequestHandler(sslSocket, contentCache);
                 requestHandler.startHandling();
             }
         } finally {
@@ -51,7 +56,7 @@ public class SimpleHttpsServer {
 
     }
 
-    private static SSLContext createSSLContext() throws IOException, GeneralSecurityException {
+    public static SSLContext createSSLContext() throws IOException, GeneralSecurityException {
         final char[] password = KEYSTORE_PASS.toCharArray();
         KeyStore keyStore = KeyStore.getInstance("JKS");
         LOGGER.info("Loading keystore file from \"" + KEYSTORE_PATH + "\".");
@@ -0,0 +1,175 @@
+package jpiccoli.test.io.ssl.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Size bounded LRU cache of pre-encoded responses held in direct buffers.
+ * For files up to {@code maxEntrySize} bytes, the cached buffer holds the response header followed
+ * by the file contents, so the response can be sent with a single write. For larger files only the
+ * header is cached and the contents are streamed from disk. Entries are revalidated against the
+ * file modification time and length on every lookup, and dropped once their file no longer exists.
+ * A variant of the header announcing that the connection will be closed is cached along with each entry.
+ */
+class StaticContentCache {
+
+    private static final String LINE_ENDING = "\r\n";
+
+    private final long maxSize;
+    private final long maxEntrySize;
+    private final LinkedHashMap<File, Entry> entries;
+    private long size;
+
+    StaticContentCache(final long maxSize, final long maxEntrySize) {
+        this.maxSize = maxSize;
+        this.maxEntrySize = maxEntrySize;
+        entries = new LinkedHashMap<>(16, 0.75f, true);
+    }
+
+    /**
+     * @param file The requested file.
+     * @return The cached response for the file, or null if the file does not exist.
+     * @throws IOException If an error occurs reading the file.
+     */
+    Entry get(final File file) throws IOException {
+        long lastModified = file.lastModified();
+        long length = file.length();
+        synchronized (this) {
+            Entry entry = entries.get(file);
+            if (entry != null && entry.lastModified == lastModified && entry.length == length) {
+                return entry;
+            }
+        }
+        if (!file.isFile()) {
+            remove(file);
+            return null;
+        }
+        Entry entry;
+        try {
+            entry = load(file, lastModified, length);
+        } catch (NoSuchFileException e) {
+            remove(file);
+            return null;
+        }
+        synchronized (this) {
+            Entry previous = entries.put(file, entry);
+            if (previous != null) {
+                size -= previous.response.capacity();
+            }
+            size += entry.response.capacity();
+            Iterator<Map.Entry<File, Entry>> iterator = entries.entrySet().iterator();
+            while (size > maxSize && iterator.hasNext()) {
+                Entry eldest = iterator.next().getValue();
+                if (eldest != entry) {
+                    size -= eldest.response.capacity();
+                    iterator.remove();
+                }
+            }
+        }
+        return entry;
+    }
+
+    /**
+     * Drops the entry of a file which no longer exists. Its direct buffer is reclaimed once the
+     * connections still sending it are done with their views.
+     */
+    private synchronized void remove(final File file) {
+        Entry entry = entries.remove(file);
+        if (entry != null) {
+            size -= entry.response.capacity();
+        }
+    }
+
+    private Entry load(final File file, final long lastModified, final long length) throws IOException {
+        byte[] header = encodeHeader(file, length, false);
+        byte[] closingHeader = encodeHeader(file, length, true);
+        boolean complete = length <= maxEntrySize;
+        ByteBuffer response = ByteBuffer.allocateDirect(header.length + (complete ? (int) length : 0));
+        response.put(header);
+        if (complete) {
+            try (FileChannel fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                while (response.hasRemaining() && fileChannel.read(response) >= 0) {
+                    //
+                }
+            }
+            if (response.hasRemaining()) {
+                throw new IOException("File changed while being read: " + file);
+            }
+        }
+        response.flip();
+        ByteBuffer closingHeaderBuffer = ByteBuffer.allocateDirect(closingHeader.length);
+        closingHeaderBuffer.put(closingHeader).flip();
+        return new Entry(response, header.length, closingHeaderBuffer, complete, lastModified, length);
+    }
+
+    private static byte[] encodeHeader(final File file, final long length, final boolean closing) {
+        String filename = file.getName().toLowerCase();
+        String contentType = filename.endsWith(".html") || filename.endsWith(".htm") ? "text/html" : "application/octet-stream";
+        String header = "HTTP/1.1 200 OK" + LINE_ENDING
+                + "Content-Type: " + contentType + LINE_ENDING
+                + "Content-Length: " + length + LINE_ENDING
+                + (closing ? "Connection: close" + LINE_ENDING : "")
+                + LINE_ENDING;
+        return header.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    static class Entry {
+
+        private final ByteBuffer response;
+        private final int headerLength;
+        private final ByteBuffer closingHeader;
+        private final boolean complete;
+        private final long lastModified;
+        private final long length;
+
+        private Entry(final ByteBuffer response, final int headerLength, final ByteBuffer closingHeader, final boolean complete,
+                final long lastModified, final long length) {
+            this.response = response;
+            this.headerLength = headerLength;
+            this.closingHeader = closingHeader;
+            this.complete = complete;
+            this.lastModified = lastModified;
+            this.length = length;
+        }
+
+        /**
+         * @return A new read only view of the cached response, independent from the ones handed to other connections.
+         */
+        ByteBuffer getResponse() {
+            return response.asReadOnlyBuffer();
+        }
+
+        /**
+         * @return A new read only view of the header with "Connection: close", to be followed by {@code getContents}.
+         */
+        ByteBuffer getClosingHeader() {
+            return closingHeader.asReadOnlyBuffer();
+        }
+
+        /**
+         * @return A new read only view of the cached file contents, empty if only the header is cached.
+         */
+        ByteBuffer getContents() {
+            ByteBuffer contents = response.asReadOnlyBuffer();
+            contents.position(headerLength);
+            return contents;
+        }
+
+        /**
+         * @return True if the cached response contains the file contents, false if only the header is cached.
+         */
+        boolean isComplete() {
+            return complete;
+        }
+
+    }
+
+}
@@ -10,6 +10,9 @@ import java.util.Queue;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.Executor;
 import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 import javax.net.ssl.SSLEngine;
 import javax.net.ssl.SSLEngineResult;
 import javax.net.ssl.SSLException;
@@ -25,15 +28,23 @@ import javax.net.ssl.SSLException;
  */
 public class AsynchronousSSLChannel implements AsynchronousByteChannel {
 
-    private static final boolean ASYNC_DISPATCH = false;
+    static final int DEFAULT_BUFFER_SIZE = 1024 * 1024;
+    static final int MAX_RECORD_SIZE = 1024 * 16;
+    private static final long DEFAULT_LOW_WATER_MARK = 1024 * 32;
+    private static final long DEFAULT_HIGH_WATER_MARK = 1024 * 64;
 
     private final AsynchronousByteChannel channel;
     private final SSLEngine engine;
     private final Executor executor;
+    private final BufferAllocator allocator;
+    private final AtomicBoolean buffersReleased;
+    private final int recordSize;
+    private final boolean asyncDispatch;
 
     private final ByteBuffer inputBuffer;
     private final ByteBuffer outputBuffer;
     private final ByteBuffer emptyBuffer;
+    private final AtomicReference<ByteBuffer> spareReadBuffer;
 
     private final ConsumingQueue<IOOperation<?>> pendingReadOperations;
     private final ConsumingQueue<IOOperation<?>> pendingWriteOperations;
@@ -41,6 +52,15 @@ public class AsynchronousSSLChannel implements AsynchronousByteChannel {
     private final CompletionHandler<Integer, IOOperation<?>> readHandler;
     private final CompletionHandler<Integer, IOOperation<?>> writeHandler;
 
+    private final AtomicLong queuedWriteBytes;
+    private final AtomicBoolean writable;
+    private volatile long lowWaterMark;
+    private volatile long highWaterMark;
+    private volatile long writeQueueLimit;
+    private volatile WritabilityListener writabilityListener;
+    private volatile ChannelEventTrace eventTrace;
+    private volatile boolean outputShutdown;
+
     /**
      * Constructor.
      * @param channel The delegate AsynchronousByteChannel.
@@ -48,24 +68,64 @@ public class AsynchronousSSLChannel implements AsynchronousByteChannel {
      * @param executor Executor for running the delegated tasks generated by the SSLEngine during handshake.
      */
     public AsynchronousSSLChannel(final AsynchronousByteChannel channel, final SSLEngine engine, final Executor executor) {
+        this(channel, engine, executor, DirectBufferAllocator.INSTANCE);
+    }
+
+    /**
+     * Constructor.
+     * @param channel The delegate AsynchronousByteChannel.
+     * @param engine The SSLEngine which provides the @{code wrap} and @{code unwrap} primitives.
+     * @param executor Executor for running the delegated tasks generated by the SSLEngine during handshake.
+     * @param allocator Allocator which provides the internal ciphertext buffers and the buffers of borrowed reads.
+     * The ciphertext buffers are handed back to it when this channel is closed.
+     */
+    public AsynchronousSSLChannel(final AsynchronousByteChannel channel, final SSLEngine engine, final Executor executor,
+            final BufferAllocator allocator) {
+        this(channel, engine, executor, allocator, DEFAULT_BUFFER_SIZE, DEFAULT_BUFFER_SIZE, MAX_RECORD_SIZE, false);
+    }
+
+    /**
+     * Constructor used by {@link AsynchronousSSLChannelBuilder}, which validates the sizes.
+     * @param channel The delegate AsynchronousByteChannel.
+     * @param engine The SSLEngine which provides the @{code wrap} and @{code unwrap} primitives.
+     * @param executor Executor for running the delegated tasks generated by the SSLEngine during handshake.
+     * @param allocator Allocator which provides the internal ciphertext buffers and the buffers of borrowed reads.
+     * @param inputBufferSize The size of the buffer holding the ciphertext read from the delegate channel.
+     * @param outputBufferSize The size of the buffer holding the ciphertext written to the delegate channel in each write.
+     * @param recordSize The maximum number of plaintext bytes encrypted into each TLS record.
+     * @param asyncDispatch True for running the completion handlers and queued operations on the executor
+     * instead of on the thread which completed the underlying IO.
+     */
+    AsynchronousSSLChannel(final AsynchronousByteChannel channel, final SSLEngine engine, final Executor executor,
+            final BufferAllocator allocator, final int inputBufferSize, final int outputBufferSize, final int recordSize,
+            final boolean asyncDispatch) {
         this.channel = channel;
         this.engine = engine;
         this.executor = executor;
-        // TODO: These hard coded sizes for the input and output buffers seems... ugly.
-        // We should probably allow the caller to specify these sizes.
-        inputBuffer = ByteBuffer.allocateDirect(1024 * 1024).limit(0);
-        outputBuffer = ByteBuffer.allocateDirect(1024 * 1024);
+        this.allocator = allocator;
+        this.recordSize = recordSize;
+        this.asyncDispatch = asyncDispatch;
+        inputBuffer = allocator.allocate(inputBufferSize);
+        inputBuffer.limit(0);
+        outputBuffer = allocator.allocate(outputBufferSize);
+        buffersReleased = new AtomicBoolean();
         emptyBuffer = ByteBuffer.allocate(0);
+        spareReadBuffer = new AtomicReference<>();
         pendingReadOperations = new ConsumingQueue<>();
         pendingWriteOperations = new ConsumingQueue<>();
-        readHandler = IOHandlerBuilder.buildCompletionHandler(this::readCompleted, this::ioFailed);
-        writeHandler = IOHandlerBuilder.buildCompletionHandler(this::writeCompleted, this::ioFailed);
+        readHandler = IOHandlerBuilder.buildCompletionHandler(this::readCompleted, this::readFailed);
+        writeHandler = IOHandlerBuilder.buildCompletionHandler(this::writeCompleted, this::writeFailed);
+        queuedWriteBytes = new AtomicLong();
+        writable = new AtomicBoolean(true);
+        lowWaterMark = DEFAULT_LOW_WATER_MARK;
+        highWaterMark = DEFAULT_HIGH_WATER_MARK;
     }
 
     @Override
     public <A> void read(final ByteBuffer buffer, final A attachment, final CompletionHandler<Integer, ? super A> completionHandler) {
-        if (isOpen()) {
-            pendingReadOperations.add(new IOOperation<>(buffer, attachment, completionHandler));
+        // Reading remains possible after shutdownOutput, until the peer closes its side of the connection.
+        if (!engine.isInboundDone() && channel.isOpen() && pendingReadOperations.add(new IOOperation<>(buffer, attachment, completionHandler))) {
+            trace(ChannelEventTrace.Event.READ_QUEUED, buffer.remaining(), 0);
             nextRead();
         } else {
             dispatch(() -> completionHandler.completed(-1, attachment));
@@ -79,11 +139,57 @@ public class AsynchronousSSLChannel implements AsynchronousByteChannel {
         return completableFuture;
     }
 
+    /**
+     * Reads without a destination buffer provided by the caller. The channel decrypts into a buffer of its own,
+     * large enough for a whole record, and completes the handler with a read-only view of the data. The buffer
+     * returns to the channel when the caller releases it, and is reused by the next borrowed read.
+     * @param attachment The object to attach to the IO operation.
+     * @param completionHandler The handler for consuming the result. It receives null at end of stream.
+     */
+    public <A> void readBorrowed(final A attachment, final CompletionHandler<BorrowedBuffer, ? super A> completionHandler) {
+        ByteBuffer buffer = borrowReadBuffer();
+        read(buffer, attachment, new BorrowedReadHandler<>(completionHandler, buffer));
+    }
+
+    /**
+     * @see #readBorrowed(Object, CompletionHandler)
+     * @return A Future completed with the borrowed data, or with null at end of stream.
+     */
+    public Future<BorrowedBuffer> readBorrowed() {
+        CompletableFuture<BorrowedBuffer> completableFuture = new CompletableFuture<>();
+        readBorrowed(null, new CompletableFutureWrapper<>(completableFuture));
+        return completableFuture;
+    }
+
     @Override
     public <A> void write(final ByteBuffer buffer, final A attachment, final CompletionHandler<Integer, ? super A> completionHandler) {
-        if (isOpen()) {
-            pendingWriteOperations.add(new IOOperation<>(buffer, attachment, completionHandler));
-            nextWrite();
+        // Writing remains possible after the peer closed its side of the connection, until shutdownOutput.
+        if (!isOutputShutdown() && channel.isOpen()) {
+            final long size = buffer.remaining();
+            trace(ChannelEventTrace.Event.WRITE_QUEUED, (int) size, 0);
+            IOOperation<?> writeOperation;
+            if (size == 0) {
+                writeOperation = new IOOperation<>(buffer, attachment, completionHandler);
+            } else {
+                long queued = queuedWriteBytes.addAndGet(size);
+                long limit = writeQueueLimit;
+                // A single write larger than the limit is still accepted when nothing else is queued, otherwise it could never succeed.
+                if (limit > 0 && queued > limit && queued != size) {
+                    queuedWriteBytes.addAndGet(-size);
+                    dispatch(() -> completionHandler.failed(new WriteQueueFullException(queued - size, limit), attachment));
+                    return;
+                }
+                if (queued >= highWaterMark) {
+                    updateWritability();
+                }
+                writeOperation = new IOOperation<>(buffer, attachment, new QueuedWriteHandler<>(completionHandler, size));
+            }
+            if (pendingWriteOperations.add(writeOperation)) {
+                nextWrite();
+            } else {
+                // Closed concurrently.
+                dispatch(() -> writeOperation.fireException(new ClosedChannelException()));
+            }
         } else {
             dispatch(() -> completionHandler.failed(new ClosedChannelException(), attachment));
         }
@@ -96,6 +202,105 @@ public class AsynchronousSSLChannel implements AsynchronousByteChannel {
         return completableFuture;
     }
 
+    /**
+     * Sets the water marks which drive the writability of this channel. The channel becomes not writable once
+     * the outbound data queued by {@code write} calls and not yet handed to the delegate channel reaches the high
+     * water mark, and becomes writable again after it drops to the low water mark.
+     * The defaults are 32 KB and 64 KB.
+     * @param lowWaterMark The low water mark, in bytes.
+     * @param highWaterMark The high water mark, in bytes.
+     */
+    public void setWriteBufferWaterMarks(final long lowWaterMark, final long highWaterMark) {
+        if (lowWaterMark < 0 || highWaterMark < lowWaterMark) {
+            throw new IllegalArgumentException("Invalid water marks: low=" + lowWaterMark + ", high=" + highWaterMark);
+        }
+        this.lowWaterMark = lowWaterMark;
+        this.highWaterMark = highWaterMark;
+    }
+
+    /**
+     * Sets the hard limit on the outbound data queued in this channel. Writes which would exceed it fail
+     * immediately with a {@link WriteQueueFullException}, except when nothing else is queued.
+     * @param writeQueueLimit The limit in bytes, or zero for no limit (the default).
+     */
+    public void setWriteQueueLimit(final long writeQueueLimit) {
+        if (writeQueueLimit < 0) {
+            throw new IllegalArgumentException("Invalid write queue limit: " + writeQueueLimit);
+        }
+        this.writeQueueLimit = writeQueueLimit;
+    }
+
+    /**
+     * Sets the listener notified when this channel stops being writable or becomes writable again, as driven by
+     * the water marks. The listener runs synchronously, on the thread calling {@code write} when that write takes
+     * the queued data to the high water mark, or on the thread completing a write when the queued data drops to
+     * the low water mark. It should not block, since it holds up that write or the completion of the next one.
+     * @param writabilityListener The listener, or null for none.
+     */
+    public void setWritabilityListener(final WritabilityListener writabilityListener) {
+        this.writabilityListener = writabilityListener;
+    }
+
+    /**
+     * @return False if the outbound data queued in this channel reached the high water mark and did not drop
+     * back to the low water mark yet. True otherwise.
+     */
+    public boolean isWritable() {
+        return writable.get();
+    }
+
+    /**
+     * @return The number of bytes queued by {@code write} calls which did not complete yet.
+     */
+    public long getQueuedWriteBytes() {
+        return queuedWriteBytes.get();
+    }
+
+    /**
+     * Enables recording the last events of this channel for diagnosing stalled connections.
+     * @param eventTrace The trace receiving the events, or null for disabling the recording.
+     */
+    public void setEventTrace(final ChannelEventTrace eventTrace) {
+        this.eventTrace = eventTrace;
+    }
+
+    public ChannelEventTrace getEventTrace() {
+        return eventTrace;
+    }
+
+    /**
+     * Shuts down the outbound side of the connection by sending the TLS close_notify alert.
+     * Subsequent writes fail with a ClosedChannelException, while reads still return the data
+     * sent by the peer until it closes its own side.
+     */
+    public void shutdownOutput() {
+        outputShutdown = true;
+        engine.closeOutbound();
+        queueHandshakeWrite();
+    }
+
+    /**
+     * The output is shut down by {@link #shutdownOutput()}, and also when the peer closes its side of the
+     * connection with TLS 1.2 or earlier: those versions require answering the peer's close_notify with our
+     * own, so only TLS 1.3 connections can keep writing after reading the end of stream.
+     * @return True if writes to this channel fail with a ClosedChannelException.
+     */
+    public boolean isOutputShutdown() {
+        return outputShutdown || engine.isOutboundDone();
+    }
+
+    /**
+     * @return True if the peer closed its side of the connection, after which reads return the end of stream.
+     */
+    public boolean isInputShutdown() {
+        return engine.isInboundDone();
+    }
+
+    /**
+     * A half closed connection is no longer open, even though one of its directions may still work: see
+     * {@link #isInputShutdown()} and {@link #isOutputShutdown()} for telling which one.
+     * @return True if the delegate channel is open and neither side of the connection has been closed.
+     */
     @Override
     public boolean isOpen() {
         return !engine.isInboundDone() && !engine.isOutboundDone() && channel.isOpen();
@@ -103,14 +308,121 @@ public class AsynchronousSSLChannel implements AsynchronousByteChannel {
 
     @Override
     public void close() throws IOException {
-        channel.close();
+        trace(ChannelEventTrace.Event.CLOSED, 0, 0);
+        try {
+            channel.close();
+        } finally {
+            releaseBuffers();
+            propagateClosingEvent();
+        }
+    }
+
+    /**
+     * Hands the buffers back to the allocator. Each ciphertext buffer is released only once the operation
+     * using it, if any, is done with it: an unwrap or wrap may still be running on another thread, or a read
+     * or write of the delegate channel may still be pending on it, and the allocator could otherwise give the
+     * buffer to another channel while it is in use.
+     */
+    private void releaseBuffers() {
+        if (buffersReleased.compareAndSet(false, true)) {
+            pendingReadOperations.close(() -> ciphertextBufferIdle(inputBuffer));
+            pendingWriteOperations.close(() -> ciphertextBufferIdle(outputBuffer));
+            releaseSpareReadBuffer();
+        }
+    }
+
+    private void ciphertextBufferIdle(final ByteBuffer buffer) {
+        allocator.release(buffer);
+        // Operations replayed by the last one will not run anymore.
         propagateClosingEvent();
     }
 
+    private ByteBuffer borrowReadBuffer() {
+        int size = engine.getSession().getApplicationBufferSize();
+        ByteBuffer buffer = spareReadBuffer.getAndSet(null);
+        if (buffer == null || buffer.capacity() < size) {
+            if (buffer != null) {
+                allocator.release(buffer);
+            }
+            buffer = allocator.allocate(size);
+        }
+        buffer.clear();
+        return buffer;
+    }
+
+    /**
+     * Keeps a released read buffer for the next borrowed read, unless another one is already kept.
+     */
+    private void returnReadBuffer(final ByteBuffer buffer) {
+        if (!spareReadBuffer.compareAndSet(null, buffer)) {
+            allocator.release(buffer);
+        } else if (buffersReleased.get()) {
+            // The channel was closed concurrently and may have missed the buffer.
+            releaseSpareReadBuffer();
+        }
+    }
+
+    private void releaseSpareReadBuffer() {
+        ByteBuffer buffer = spareReadBuffer.getAndSet(null);
+        if (buffer != null) {
+            allocator.release(buffer);
+        }
+    }
+
+    private void writeDequeued(final long size) {
+        if (queuedWriteBytes.addAndGet(-size) <= lowWaterMark && !writable.get()) {
+            updateWritability();
+        }
+    }
+
+    private void updateWritability() {
+        // Writers and completing writes race on the queue size, so the state is reevaluated
+        // after each transition until it agrees with the current queue size.
+        while (true) {
+            long queued = queuedWriteBytes.get();
+            boolean current = writable.get();
+            boolean newValue;
+            if (current && queued >= highWaterMark) {
+                newValue = false;
+            } else if (!current && queued <= lowWaterMark) {
+                newValue = true;
+            } else {
+                return;
+            }
+            if (writable.compareAndSet(current, newValue)) {
+                WritabilityListener listener = writabilityListener;
+                if (listener != null) {
+                    listener.writabilityChanged(this, newValue);
+                }
+            }
+        }
+    }
+
+    private void trace(final ChannelEventTrace.Event event, final int firstValue, final int secondValue) {
+        ChannelEventTrace trace = eventTrace;
+        if (trace != null) {
+            trace.record(event, firstValue, secondValue);
+        }
+    }
+
+    private void trace(final ChannelEventTrace.Event event, final SSLEngineResult result) {
+        ChannelEventTrace trace = eventTrace;
+        if (trace != null) {
+            trace.record(event, result);
+        }
+    }
+
+    private void trace(final SSLEngineResult.HandshakeStatus handshakeStatus) {
+        ChannelEventTrace trace = eventTrace;
+        if (trace != null && handshakeStatus != SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING) {
+            trace.record(ChannelEventTrace.Event.HANDSHAKE, handshakeStatus);
+        }
+    }
+
     private void dispatch(final Runnable async) {
     	// It is probably a good idea to dispatch these runnables on a different thread.
     	// On the other hand, using the provided Executor to run them might not be the way to go.
-        if (ASYNC_DISPATCH) {
+        if (asyncDispatch) {
             executor.execute(async);
         } else {
             async.run();
@@ -121,6 +433,7 @@ public class AsynchronousSSLChannel implements AsynchronousByteChannel {
         dispatch(() -> {
             IOOperation<?> readOperation = pendingReadOperations.consume();
             if (readOperation != null) {
+                trace(ChannelEventTrace.Event.READ_STARTED, readOperation.getBuffer().remaining(), inputBuffer.remaining());
                 unwrap(readOperation);
             }
         });
@@ -130,12 +443,14 @@ public class AsynchronousSSLChannel implements AsynchronousByteChannel {
         dispatch(() -> {
             IOOperation<?> writeOperation = pendingWriteOperations.consume();
             if (writeOperation != null) {
+                trace(ChannelEventTrace.Event.WRITE_STARTED, writeOperation.getBuffer().remaining(), 0);
                 wrap(writeOperation);
             }
         });
     }
 
     private void runEngine() {
+        trace(ChannelEventTrace.Event.DELEGATED_TASK_FINISHED, 0, 0);
         if (handleHandshake()) {
             nextRead();
             nextWrite();
@@ -153,16 +468,18 @@ public class AsynchronousSSLChannel implements AsynchronousByteChannel {
      * or {@code nextWrite} after returning from this method. False otherwise.
      */
     private boolean handleHandshake(final SSLEngineResult.HandshakeStatus handshakeStatus) {
+        trace(handshakeStatus);
         switch (handshakeStatus) {
             case NEED_UNWRAP:
                 read(emptyBuffer);
                 return false;
             case NEED_WRAP:
-                write(emptyBuffer);
+                queueHandshakeWrite();
                 return false;
             case NEED_TASK:
                 Runnable delegatedTask = engine.getDelegatedTask();
                 if (delegatedTask != null) {
+                    trace(ChannelEventTrace.Event.DELEGATED_TASK_STARTED, 0, 0);
                     executor.execute(RunnableComposer.compose(delegatedTask, this::runEngine));
                 }
                 return false;
@@ -175,6 +492,17 @@ public class AsynchronousSSLChannel implements AsynchronousByteChannel {
         }
     }
 
+    /**
+     * Queues a wrap requested by the SSLEngine. Unlike {@code write}, this does not check whether the
+     * engine is still open: a failed handshake closes the engine, which still needs to send its alert.
+     */
+    private void queueHandshakeWrite() {
+        if (pendingWriteOperations.add(new IOOperation<>(emptyBuffer, null, new CompletableFutureWrapper<>(new CompletableFuture<Integer>())))) {
+            trace(ChannelEventTrace.Event.WRITE_QUEUED, 0, 0);
+            nextWrite();
+        }
+    }
+
     private void propagateException(final Exception exception) {
         dispatch(() -> {
             Queue<IOOperation<?>> currentlyPendingReadOperations = pendingReadOperations.copyAndClear();
@@ -189,38 +517,53 @@ public class AsynchronousSSLChannel implements AsynchronousByteChannel {
     }
 
     private void propagateClosingEvent() {
+        propagateEndOfStream();
+        dispatch(() -> {
+            Queue<IOOperation<?>> currentlyPendingWriteIoOperations = pendingWriteOperations.copyAndClear();
+            for (IOOperation<?> writeOperation : currentlyPendingWriteIoOperations) {
+                writeOperation.fireException(new ClosedChannelException());
+            }
+        });
+    }
+
+    private void propagateEndOfStream() {
         dispatch(() -> {
             Queue<IOOperation<?>> currentlyPendingReadOperations = pendingReadOperations.copyAndClear();
             for (IOOperation<?> readOperation : currentlyPendingReadOperations) {
                 readOperation.setByteCount(-1);
                 readOperation.fireCompletion();
             }
-            Queue<IOOperation<?>> currentlyPendingWriteIoOperations = pendingWriteOperations.copyAndClear();
-            for (IOOperation<?> writeOperation : currentlyPendingWriteIoOperations) {
-                writeOperation.fireException(new ClosedChannelException());
-            }
         });
     }
 
     private void fireClosingEvent(final IOOperation<?> readOperation) {
         readOperation.setByteCount(-1);
         readOperation.fireCompletion();
-        propagateClosingEvent();
+        // After the peer's close_notify the pending writes still go out, unless the output is shut down as well.
+        // An end of stream without close_notify, or during the handshake, leaves nothing to write for.
+        if (engine.isInboundDone() && !isOutputShutdown() && engine.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING) {
+            propagateEndOfStream();
+        } else {
+            propagateClosingEvent();
+        }
     }
 
     private void unwrap(final IOOperation<?> ioOperation) {
         try {
             SSLEngineResult result = engine.unwrap(inputBuffer, ioOperation.getBuffer());
+            trace(ChannelEventTrace.Event.UNWRAP, result);
             // The JavaDocs for SSLEngine.unwrap method states that it decodes a single SSL/TLS packet in each call.
             // To maximize the efficiency and reduce the number of calls to the delegated channel's read method,
             // we decode as much packets as possible here.
             while (result.getStatus() == SSLEngineResult.Status.OK && result.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING) {
                 ioOperation.incrementByteCount(result.bytesProduced());
                 result = engine.unwrap(inputBuffer, ioOperation.getBuffer());
+                trace(ChannelEventTrace.Event.UNWRAP, result);
             }
             ioOperation.setLastEngineResult(result);
             if (ioOperation.getByteCount() == 0 && result.getStatus() == SSLEngineResult.Status.BUFFER_UNDERFLOW) {
-                inputBuffer.compact();
+                prepareInputBuffer();
+                trace(ChannelEventTrace.Event.DELEGATE_READ, inputBuffer.position(), inputBuffer.remaining());
                 channel.read(inputBuffer, ioOperation, readHandler);
             } else {
                 handleUnwrapResult(ioOperation);
@@ -230,21 +573,44 @@ public class AsynchronousSSLChannel implements AsynchronousByteChannel {
         }
     }
 
+    /**
+     * Prepares the input buffer for a delegate read, appending the new data after the pending ciphertext.
+     * A partial record is moved to the start of the buffer only by the first underflow on it, when just the
+     * bytes received along with the previous record are present. The later underflows on the same record
+     * find it already at the start, where {@code compact} would copy it over itself, and leave it in place.
+     */
+    private void prepareInputBuffer() {
+        if (inputBuffer.position() > 0) {
+            inputBuffer.compact();
+        } else {
+            inputBuffer.position(inputBuffer.limit());
+            inputBuffer.limit(inputBuffer.capacity());
+        }
+    }
+
     private void handleUnwrapResult(final IOOperation<?> ioOperation) {
         if (ioOperation.getBuffer() == emptyBuffer) {
             pendingReadOperations.consumed(ioOperation);
         } else if (ioOperation.getByteCount() > 0) {
+            trace(ChannelEventTrace.Event.READ_COMPLETED, ioOperation.getByteCount(), inputBuffer.remaining());
             ioOperation.fireCompletion();
             pendingReadOperations.consumed(ioOperation);
         } else {
             SSLEngineResult.Status status = ioOperation.getLastEngineResult().getStatus();
             if (status == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+                trace(ChannelEventTrace.Event.READ_FAILED, ioOperation.getBuffer().remaining(), inputBuffer.remaining());
                 ioOperation.fireException(new BufferOverflowException());
                 pendingReadOperations.consumed(ioOperation);
             } else if (status == SSLEngineResult.Status.CLOSED) {
+                trace(ChannelEventTrace.Event.READ_COMPLETED, -1, inputBuffer.remaining());
+                if (ioOperation.getLastEngineResult().getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_WRAP) {
+                    // The engine answers the peer's close_notify with its own (TLS 1.2 and earlier).
+                    outputShutdown = true;
+                }
                 fireClosingEvent(ioOperation);
                 pendingReadOperations.consumed(ioOperation);
             } else {
+                trace(ChannelEventTrace.Event.READ_REPLAYED, ioOperation.getBuffer().remaining(), inputBuffer.remaining());
                 pendingReadOperations.replay(ioOperation);
             }
         }
@@ -254,9 +620,10 @@ public class AsynchronousSSLChannel implements AsynchronousByteChannel {
     }
 
     private void handleUnwrapException(final SSLException e, final IOOperation<?> ioOperation) {
+        trace(ChannelEventTrace.Event.READ_FAILED, ioOperation.getBuffer().remaining(), inputBuffer.remaining());
         ioOperation.fireException(e);
         pendingReadOperations.consumed(ioOperation);
-        if (ioOperation.getLastEngineResult().getHandshakeStatus() != SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING) {
+        if (failedDuringHandshake(ioOperation)) {
             propagateException(e);
         }
         if (handleHandshake()) {
@@ -270,15 +637,18 @@ public class AsynchronousSSLChannel implements AsynchronousByteChannel {
             // Despite the JavaDocs for SSLEngine.wrap stating that this method consumes as much bytes as possible from the source buffer,
             // it seems that, in practice, this is not true. For the same reason as in the unwrap method above, we call the wrap method
             // many times to consume as much data as possible from the source buffer.
-            SSLEngineResult result = engine.wrap(ioOperation.getBuffer(), outputBuffer);
+            SSLEngineResult result = wrapRecord(ioOperation.getBuffer());
+            trace(ChannelEventTrace.Event.WRAP, result);
             while (result.getStatus() == SSLEngineResult.Status.OK && result.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING
                 && result.bytesConsumed() > 0) {
                 ioOperation.incrementByteCount(result.bytesConsumed());
-                result = engine.wrap(ioOperation.getBuffer(), outputBuffer);
+                result = wrapRecord(ioOperation.getBuffer());
+                trace(ChannelEventTrace.Event.WRAP, result);
             }
             ioOperation.setLastEngineResult(result);
             outputBuffer.flip();
             if (outputBuffer.hasRemaining()) {
+                trace(ChannelEventTrace.Event.DELEGATE_WRITE, outputBuffer.remaining(), 0);
                 channel.write(outputBuffer, ioOperation, writeHandler);
             } else {
                 handleWrapResult(ioOperation);
@@ -288,15 +658,35 @@ public class AsynchronousSSLChannel implements AsynchronousByteChannel {
         }
     }
 
+    /**
+     * Wraps at most {@code recordSize} bytes of the source buffer, so each call produces a single record of that size.
+     */
+    private SSLEngineResult wrapRecord(final ByteBuffer source) throws SSLException {
+        if (source.remaining() <= recordSize) {
+            return engine.wrap(source, outputBuffer);
+        }
+        int limit = source.limit();
+        source.limit(source.position() + recordSize);
+        try {
+            return engine.wrap(source, outputBuffer);
+        } finally {
+            source.limit(limit);
+        }
+    }
+
     private void handleWrapResult(final IOOperation<?> ioOperation) {
         if (ioOperation.getBuffer() == emptyBuffer) {
             pendingWriteOperations.consumed(ioOperation);
         } else if (ioOperation.getByteCount() > 0) {
+            trace(ChannelEventTrace.Event.WRITE_COMPLETED, ioOperation.getByteCount(), ioOperation.getBuffer().remaining());
             ioOperation.fireCompletion();
             pendingWriteOperations.consumed(ioOperation);
         } else if (ioOperation.getLastEngineResult().getStatus() == SSLEngineResult.Status.CLOSED) {
+            trace(ChannelEventTrace.Event.WRITE_FAILED, ioOperation.getBuffer().remaining(), 0);
             ioOperation.fireException(new ClosedChannelException());
+            pendingWriteOperations.consumed(ioOperation);
         } else {
+            trace(ChannelEventTrace.Event.WRITE_REPLAYED, ioOperation.getBuffer().remaining(), 0);
             pendingWriteOperations.replay(ioOperation);
         }
         if (handleHandshake(ioOperation.getLastEngineResult().getHandshakeStatus())) {
@@ -305,9 +695,10 @@ public class AsynchronousSSLChannel implements AsynchronousByteChannel {
     }
 
     private void handleWrapException(final SSLException e, final IOOperation<?> ioOperation) {
+        trace(ChannelEventTrace.Event.WRITE_FAILED, ioOperation.getBuffer().remaining(), 0);
         ioOperation.fireException(e);
         pendingWriteOperations.consumed(ioOperation);
-        if (ioOperation.getLastEngineResult().getHandshakeStatus() != SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING) {
+        if (failedDuringHandshake(ioOperation)) {
             propagateException(e);
         }
         if (handleHandshake()) {
@@ -315,7 +706,17 @@ public class AsynchronousSSLChannel implements AsynchronousByteChannel {
         }
     }
 
+    /**
+     * @return True if the operation failed while handshaking, or in its first call to the SSLEngine, which
+     * left no result to tell. The pending operations would otherwise wait forever for a handshake which failed.
+     */
+    private static boolean failedDuringHandshake(final IOOperation<?> ioOperation) {
+        SSLEngineResult lastEngineResult = ioOperation.getLastEngineResult();
+        return lastEngineResult == null || lastEngineResult.getHandshakeStatus() != SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING;
+    }
+
     private void readCompleted(Integer result, IOOperation<?> attachment) {
+        trace(ChannelEventTrace.Event.DELEGATE_READ_COMPLETED, result != null ? result : 0, inputBuffer.position());
         if (result != null && result < 0) {
             fireClosingEvent(attachment);
             pendingReadOperations.consumed(attachment);
@@ -327,15 +728,87 @@ public class AsynchronousSSLChannel implements AsynchronousByteChannel {
     }
 
     private void writeCompleted(Integer result, IOOperation<?> attachment) {
+        trace(ChannelEventTrace.Event.DELEGATE_WRITE_COMPLETED, result != null ? result : 0, outputBuffer.remaining());
         if (outputBuffer.hasRemaining()) {
+            trace(ChannelEventTrace.Event.DELEGATE_WRITE, outputBuffer.remaining(), 0);
             channel.write(outputBuffer, attachment, writeHandler);
         } else {
             handleWrapResult(attachment);
         }
     }
 
-    private void ioFailed(Throwable exc, IOOperation<?> attachment) {
+    private void readFailed(Throwable exc, IOOperation<?> attachment) {
+        trace(ChannelEventTrace.Event.DELEGATE_FAILED, attachment.getBuffer().remaining(), 0);
         attachment.fireException(exc);
+        pendingReadOperations.consumed(attachment);
+        nextRead();
+    }
+
+    private void writeFailed(Throwable exc, IOOperation<?> attachment) {
+        trace(ChannelEventTrace.Event.DELEGATE_FAILED, attachment.getBuffer().remaining(), 0);
+        attachment.fireException(exc);
+        pendingWriteOperations.consumed(attachment);
+        nextWrite();
+    }
+
+    /**
+     * Adapts the completion of a read into a borrowed buffer to the handler of {@code readBorrowed}.
+     */
+    private class BorrowedReadHandler<A> implements CompletionHandler<Integer, A> {
+
+        private final CompletionHandler<BorrowedBuffer, ? super A> completionHandler;
+        private final ByteBuffer buffer;
+
+        BorrowedReadHandler(final CompletionHandler<BorrowedBuffer, ? super A> completionHandler, final ByteBuffer buffer) {
+            this.completionHandler = completionHandler;
+            this.buffer = buffer;
+        }
+
+        @Override
+        public void completed(final Integer result, final A attachment) {
+            if (result < 0) {
+                returnReadBuffer(buffer);
+                completionHandler.completed(null, attachment);
+            } else {
+                buffer.flip();
+                completionHandler.completed(new BorrowedBuffer(buffer, AsynchronousSSLChannel.this::returnReadBuffer), attachment);
+            }
+        }
+
+        @Override
+        public void failed(final Throwable exc, final A attachment) {
+            returnReadBuffer(buffer);
+            completionHandler.failed(exc, attachment);
+        }
+
+    }
+
+    /**
+     * Decorates the completion handler of a write accounted in the outbound queue size, releasing
+     * its share of the queue before notifying the caller.
+     */
+    private class QueuedWriteHandler<A> implements CompletionHandler<Integer, A> {
+
+        private final CompletionHandler<Integer, ? super A> completionHandler;
+        private final long size;
+
+        QueuedWriteHandler(final CompletionHandler<Integer, ? super A> completionHandler, final long size) {
+            this.completionHandler = completionHandler;
+            this.size = size;
+        }
+
+        @Override
+        public void completed(final Integer result, final A attachment) {
+            writeDequeued(size);
+            completionHandler.completed(result, attachment);
+        }
+
+        @Override
+        public void failed(final Throwable exc, final A attachment) {
+            writeDequeued(size);
+            completionHandler.failed(exc, attachment);
+        }
+
     }
 
 }
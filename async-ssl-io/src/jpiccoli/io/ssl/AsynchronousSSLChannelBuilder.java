@@ -0,0 +1,289 @@
+package jpiccoli.io.ssl;
+
+import java.nio.channels.AsynchronousByteChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executor;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLParameters;
+
+/**
+ * Reusable configuration for creating {@link AsynchronousSSLChannel}s: sizes of the ciphertext buffers,
+ * size of the outgoing TLS records, dispatch mode, write water marks and the protocols and cipher suites
+ * enabled on the SSLEngine. A new builder is equivalent to the plain constructors of AsynchronousSSLChannel
+ * and leaves the SSLEngine untouched. The {@link Profile}s provide presets for common workloads, which can
+ * be further adjusted with the setters.
+ * <p>
+ * Buffer sizes of zero stand for the packet buffer size of the SSLEngine session, the smallest size which
+ * can hold a whole TLS record. Smaller sizes are rejected when the channel is built.
+ *
+ * @author Juliano Piccoli
+ *
+ */
+public class AsynchronousSSLChannelBuilder {
+
+    /**
+     * Presets measured with the {@code ProfileBenchmark} sample application. All of them run completion handlers
+     * on the thread which completed the IO, since dispatching them to the executor added a thread hand off to every
+     * operation, which raised latency and lowered throughput. They also keep full sized records: records below 16 KB
+     * did not reduce the time to the first byte over loopback and cut throughput, with 1 KB records, by half.
+     */
+    public enum Profile {
+
+        /**
+         * For many mostly idle connections. Both ciphertext buffers hold a single record, which brings the
+         * buffer memory of a connection from 2 MB down to about 33 KB, and the write water marks are lowered
+         * accordingly. Throughput drops because every record is written to the delegate channel on its own.
+         */
+        LOW_MEMORY(0, 0, AsynchronousSSLChannel.MAX_RECORD_SIZE, false, 1024 * 8, 1024 * 16),
+
+        /**
+         * For small request and response exchanges. The output buffer holds a single record, so each record
+         * is written to the delegate channel as soon as it is encrypted. The input buffer still takes several
+         * records per delegate read.
+         */
+        LOW_LATENCY(1024 * 64, 0, AsynchronousSSLChannel.MAX_RECORD_SIZE, false, 1024 * 32, 1024 * 64),
+
+        /**
+         * For large transfers. Full sized records and large buffers let each delegate read and write carry
+         * many records, and high water marks keep enough data queued to saturate the connection.
+         */
+        BULK(1024 * 256, 1024 * 256, AsynchronousSSLChannel.MAX_RECORD_SIZE, false, 1024 * 512, 1024 * 1024);
+
+        private final int inputBufferSize;
+        private final int outputBufferSize;
+        private final int recordSize;
+        private final boolean asyncDispatch;
+        private final long lowWaterMark;
+        private final long highWaterMark;
+
+        Profile(final int inputBufferSize, final int outputBufferSize, final int recordSize, final boolean asyncDispatch,
+                final long lowWaterMark, final long highWaterMark) {
+            this.inputBufferSize = inputBufferSize;
+            this.outputBufferSize = outputBufferSize;
+            this.recordSize = recordSize;
+            this.asyncDispatch = asyncDispatch;
+            this.lowWaterMark = lowWaterMark;
+            this.highWaterMark = highWaterMark;
+        }
+
+    }
+
+    /**
+     * TLS 1.3 saves a round trip on each full handshake.
+     */
+    public static final String[] PREFERRED_PROTOCOLS = {"TLSv1.3", "TLSv1.2"};
+
+    /**
+     * AEAD cipher suites only, AES-GCM first since the JVM implements it with hardware intrinsics on most platforms,
+     * and AES-128 before AES-256 since it needs fewer rounds per block.
+     */
+    public static final String[] PREFERRED_CIPHER_SUITES = {
+        "TLS_AES_128_GCM_SHA256",
+        "TLS_AES_256_GCM_SHA384",
+        "TLS_CHACHA20_POLY1305_SHA256",
+        "TLS_ECDHE_ECDSA_WITH_AES_128_GCM_SHA256",
+        "TLS_ECDHE_RSA_WITH_AES_128_GCM_SHA256",
+        "TLS_ECDHE_ECDSA_WITH_AES_256_GCM_SHA384",
+        "TLS_ECDHE_RSA_WITH_AES_256_GCM_SHA384",
+        "TLS_ECDHE_ECDSA_WITH_CHACHA20_POLY1305_SHA256",
+        "TLS_ECDHE_RSA_WITH_CHACHA20_POLY1305_SHA256"
+    };
+
+    private BufferAllocator allocator;
+    private int inputBufferSize;
+    private int outputBufferSize;
+    private int recordSize;
+    private boolean asyncDispatch;
+    private long lowWaterMark;
+    private long highWaterMark;
+    private long writeQueueLimit;
+    private String[] protocols;
+    private String[] cipherSuites;
+
+    public AsynchronousSSLChannelBuilder() {
+        allocator = DirectBufferAllocator.INSTANCE;
+        inputBufferSize = AsynchronousSSLChannel.DEFAULT_BUFFER_SIZE;
+        outputBufferSize = AsynchronousSSLChannel.DEFAULT_BUFFER_SIZE;
+        recordSize = AsynchronousSSLChannel.MAX_RECORD_SIZE;
+        lowWaterMark = -1;
+        highWaterMark = -1;
+    }
+
+    /**
+     * Creates a builder initialized with the settings of a profile, along with the preferred protocols and cipher suites.
+     * @param profile The profile.
+     * @return The builder.
+     */
+    public static AsynchronousSSLChannelBuilder forProfile(final Profile profile) {
+        return new AsynchronousSSLChannelBuilder()
+            .setBufferSizes(profile.inputBufferSize, profile.outputBufferSize)
+            .setRecordSize(profile.recordSize)
+            .setAsyncDispatch(profile.asyncDispatch)
+            .setWriteBufferWaterMarks(profile.lowWaterMark, profile.highWaterMark)
+            .setProtocols(PREFERRED_PROTOCOLS)
+            .setCipherSuites(PREFERRED_CIPHER_SUITES);
+    }
+
+    /**
+     * @param allocator Allocator which provides the ciphertext buffers and the borrowed read buffers of the channels.
+     * @return This builder.
+     */
+    public AsynchronousSSLChannelBuilder setAllocator(final BufferAllocator allocator) {
+        if (allocator == null) {
+            throw new IllegalArgumentException("Allocator must not be null");
+        }
+        this.allocator = allocator;
+        return this;
+    }
+
+    /**
+     * Sets the sizes of the ciphertext buffers. The input buffer bounds the data read from the delegate channel at once
+     * and the output buffer bounds the data written to it at once. The default is 1 MB for both.
+     * @param inputBufferSize The size of the input buffer, or zero for the packet buffer size of the session.
+     * @param outputBufferSize The size of the output buffer, or zero for the packet buffer size of the session.
+     * @return This builder.
+     */
+    public AsynchronousSSLChannelBuilder setBufferSizes(final int inputBufferSize, final int outputBufferSize) {
+        if (inputBufferSize < 0 || outputBufferSize < 0) {
+            throw new IllegalArgumentException("Invalid buffer sizes: input=" + inputBufferSize + ", output=" + outputBufferSize);
+        }
+        this.inputBufferSize = inputBufferSize;
+        this.outputBufferSize = outputBufferSize;
+        return this;
+    }
+
+    /**
+     * Limits the plaintext carried by each outgoing TLS record. Smaller records can be decrypted by the peer
+     * as soon as they arrive, at the cost of more per record overhead. The default is the maximum of 16 KB.
+     * @param recordSize The maximum number of plaintext bytes per record.
+     * @return This builder.
+     */
+    public AsynchronousSSLChannelBuilder setRecordSize(final int recordSize) {
+        if (recordSize <= 0 || recordSize > AsynchronousSSLChannel.MAX_RECORD_SIZE) {
+            throw new IllegalArgumentException("Invalid record size: " + recordSize);
+        }
+        this.recordSize = recordSize;
+        return this;
+    }
+
+    /**
+     * @param asyncDispatch True for running completion handlers and queued operations on the executor of the channel,
+     * false (the default) for running them on the thread which completed the underlying IO.
+     * @return This builder.
+     */
+    public AsynchronousSSLChannelBuilder setAsyncDispatch(final boolean asyncDispatch) {
+        this.asyncDispatch = asyncDispatch;
+        return this;
+    }
+
+    /**
+     * @see AsynchronousSSLChannel#setWriteBufferWaterMarks(long, long)
+     * @param lowWaterMark The low water mark, in bytes.
+     * @param highWaterMark The high water mark, in bytes.
+     * @return This builder.
+     */
+    public AsynchronousSSLChannelBuilder setWriteBufferWaterMarks(final long lowWaterMark, final long highWaterMark) {
+        if (lowWaterMark < 0 || highWaterMark < lowWaterMark) {
+            throw new IllegalArgumentException("Invalid water marks: low=" + lowWaterMark + ", high=" + highWaterMark);
+        }
+        this.lowWaterMark = lowWaterMark;
+        this.highWaterMark = highWaterMark;
+        return this;
+    }
+
+    /**
+     * @see AsynchronousSSLChannel#setWriteQueueLimit(long)
+     * @param writeQueueLimit The limit in bytes, or zero for no limit.
+     * @return This builder.
+     */
+    public AsynchronousSSLChannelBuilder setWriteQueueLimit(final long writeQueueLimit) {
+        if (writeQueueLimit < 0) {
+            throw new IllegalArgumentException("Invalid write queue limit: " + writeQueueLimit);
+        }
+        this.writeQueueLimit = writeQueueLimit;
+        return this;
+    }
+
+    /**
+     * @param protocols The protocols to enable on the SSLEngine, or null for keeping its defaults. Protocols
+     * not supported by the engine are skipped.
+     * @return This builder.
+     */
+    public AsynchronousSSLChannelBuilder setProtocols(final String... protocols) {
+        this.protocols = protocols != null ? protocols.clone() : null;
+        return this;
+    }
+
+    /**
+     * @param cipherSuites The cipher suites to enable on the SSLEngine, in order of preference, or null for keeping
+     * its defaults. Suites not supported by the engine are skipped. When the engine runs in server mode, the order
+     * is honored over the one of the client.
+     * @return This builder.
+     */
+    public AsynchronousSSLChannelBuilder setCipherSuites(final String... cipherSuites) {
+        this.cipherSuites = cipherSuites != null ? cipherSuites.clone() : null;
+        return this;
+    }
+
+    /**
+     * Configures the SSLEngine and creates a channel over it. The client or server mode of the engine must
+     * already be set.
+     * @param channel The delegate AsynchronousByteChannel.
+     * @param engine The SSLEngine which provides the @{code wrap} and @{code unwrap} primitives.
+     * @param executor Executor for running the delegated tasks generated by the SSLEngine during handshake.
+     * @return The channel.
+     * @throws IllegalArgumentException If a buffer size is smaller than the packet buffer size of the session,
+     * or if none of the configured protocols or cipher suites is supported by the engine.
+     */
+    public AsynchronousSSLChannel build(final AsynchronousByteChannel channel, final SSLEngine engine, final Executor executor) {
+        // The packet buffer size of a session which has not started does not depend on the enabled protocols,
+        // so the sizes are checked before configure and a rejected build leaves the engine untouched
+        int packetBufferSize = engine.getSession().getPacketBufferSize();
+        int inputSize = inputBufferSize == 0 ? packetBufferSize : inputBufferSize;
+        int outputSize = outputBufferSize == 0 ? packetBufferSize : outputBufferSize;
+        if (inputSize < packetBufferSize || outputSize < packetBufferSize) {
+            throw new IllegalArgumentException("Buffer sizes must be at least the packet buffer size of " + packetBufferSize + " bytes");
+        }
+        configure(engine);
+        AsynchronousSSLChannel sslChannel = new AsynchronousSSLChannel(channel, engine, executor, allocator, inputSize, outputSize,
+            recordSize, asyncDispatch);
+        if (lowWaterMark >= 0) {
+            sslChannel.setWriteBufferWaterMarks(lowWaterMark, highWaterMark);
+        }
+        sslChannel.setWriteQueueLimit(writeQueueLimit);
+        return sslChannel;
+    }
+
+    void configure(final SSLEngine engine) {
+        // Both lists are filtered before either is applied, so that an unsupported one leaves the engine untouched
+        String[] enabledProtocols = protocols == null ? null : filterSupported(protocols, engine.getSupportedProtocols(), "protocols");
+        String[] enabledCipherSuites = cipherSuites == null ? null
+            : filterSupported(cipherSuites, engine.getSupportedCipherSuites(), "cipher suites");
+        if (enabledProtocols != null) {
+            engine.setEnabledProtocols(enabledProtocols);
+        }
+        if (enabledCipherSuites != null) {
+            engine.setEnabledCipherSuites(enabledCipherSuites);
+            SSLParameters parameters = engine.getSSLParameters();
+            parameters.setUseCipherSuitesOrder(true);
+            engine.setSSLParameters(parameters);
+        }
+    }
+
+    private static String[] filterSupported(final String[] preferred, final String[] supported, final String description) {
+        List<String> supportedList = Arrays.asList(supported);
+        List<String> filtered = new ArrayList<>(preferred.length);
+        for (String name : preferred) {
+            if (supportedList.contains(name)) {
+                filtered.add(name);
+            }
+        }
+        if (filtered.isEmpty()) {
+            throw new IllegalArgumentException("None of the " + description + " is supported: " + Arrays.toString(preferred));
+        }
+        return filtered.toArray(new String[filtered.size()]);
+    }
+
+}
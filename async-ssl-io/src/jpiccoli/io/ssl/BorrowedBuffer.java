@@ -0,0 +1,51 @@
+package jpiccoli.io.ssl;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
+/**
+ * Plaintext delivered by {@link AsynchronousSSLChannel#readBorrowed}. The data lives in a buffer owned
+ * by the channel, exposed through a read-only view, and must be handed back with {@code release} once
+ * it has been consumed so the channel can decrypt the next records into it.
+ * The view must not be used after the release.
+ *
+ * @author Juliano Piccoli
+ *
+ */
+public final class BorrowedBuffer implements AutoCloseable {
+
+    private final ByteBuffer buffer;
+    private final ByteBuffer view;
+    private final Consumer<ByteBuffer> releaseHandler;
+    private final AtomicBoolean released;
+
+    BorrowedBuffer(final ByteBuffer buffer, final Consumer<ByteBuffer> releaseHandler) {
+        this.buffer = buffer;
+        this.view = buffer.asReadOnlyBuffer();
+        this.releaseHandler = releaseHandler;
+        released = new AtomicBoolean();
+    }
+
+    /**
+     * @return A read-only view of the decrypted data, positioned at its start.
+     */
+    public ByteBuffer getBuffer() {
+        return view;
+    }
+
+    /**
+     * Hands the buffer back to the channel. Calls after the first one have no effect.
+     */
+    public void release() {
+        if (released.compareAndSet(false, true)) {
+            releaseHandler.accept(buffer);
+        }
+    }
+
+    @Override
+    public void close() {
+        release();
+    }
+
+}
@@ -0,0 +1,32 @@
+package jpiccoli.io.ssl;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Source of the ciphertext buffers used internally by {@link AsynchronousSSLChannel}, and of the
+ * plaintext buffers of its borrowed reads.
+ * Buffers obtained through {@code allocate} are handed back through {@code release}
+ * exactly once, when the channel is closed or no longer needs them, so implementations backed by pools or
+ * explicitly managed native memory can reclaim them deterministically instead of
+ * waiting for the garbage collector.
+ * 
+ * @author Juliano Piccoli
+ *
+ */
+public interface BufferAllocator {
+
+    /**
+     * Allocates a buffer.
+     * @param capacity The minimum capacity of the returned buffer.
+     * @return A cleared buffer with at least {@code capacity} bytes of capacity.
+     */
+    ByteBuffer allocate(int capacity);
+
+    /**
+     * Gives a buffer previously returned by {@code allocate} back to this allocator.
+     * The caller must not use the buffer after calling this method.
+     * @param buffer The buffer being released.
+     */
+    void release(ByteBuffer buffer);
+
+}
@@ -0,0 +1,182 @@
+package jpiccoli.io.ssl;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.net.ssl.SSLEngineResult;
+
+/**
+ * Fixed size ring buffer which keeps the last events of an {@link AsynchronousSSLChannel}: queue actions,
+ * SSLEngine results, handshake transitions and IO on the delegate channel, each with a timestamp.
+ * Recording an event does not allocate. Slots are written without locking, so an event recorded
+ * concurrently with a dump may show up partially updated; this is meant for diagnosing stalled
+ * connections, not for auditing.
+ *
+ * @author Juliano Piccoli
+ *
+ */
+public class ChannelEventTrace {
+
+    public enum Event {
+        READ_QUEUED,
+        WRITE_QUEUED,
+        READ_STARTED,
+        WRITE_STARTED,
+        READ_REPLAYED,
+        WRITE_REPLAYED,
+        READ_COMPLETED,
+        WRITE_COMPLETED,
+        READ_FAILED,
+        WRITE_FAILED,
+        UNWRAP,
+        WRAP,
+        HANDSHAKE,
+        DELEGATED_TASK_STARTED,
+        DELEGATED_TASK_FINISHED,
+        DELEGATE_READ,
+        DELEGATE_READ_COMPLETED,
+        DELEGATE_WRITE,
+        DELEGATE_WRITE_COMPLETED,
+        DELEGATE_FAILED,
+        CLOSED
+    }
+
+    private static final Event[] EVENTS = Event.values();
+    private static final SSLEngineResult.Status[] STATUSES = SSLEngineResult.Status.values();
+    private static final SSLEngineResult.HandshakeStatus[] HANDSHAKE_STATUSES = SSLEngineResult.HandshakeStatus.values();
+    private static final int NO_STATUS = -1;
+
+    private final int mask;
+    private final long[] timestamps;
+    private final byte[] events;
+    private final int[] statuses;
+    private final int[] firstValues;
+    private final int[] secondValues;
+    private final AtomicLong sequence;
+    private volatile long lastEventNanos;
+
+    /**
+     * Constructor.
+     * @param capacity The number of events retained. Rounded up to the next power of two.
+     */
+    public ChannelEventTrace(final int capacity) {
+        if (capacity <= 0 || capacity > 1 << 30) {
+            throw new IllegalArgumentException("Invalid capacity: " + capacity);
+        }
+        int size = Integer.highestOneBit(capacity - 1) << 1;
+        size = Math.max(size, 1);
+        mask = size - 1;
+        timestamps = new long[size];
+        events = new byte[size];
+        statuses = new int[size];
+        firstValues = new int[size];
+        secondValues = new int[size];
+        sequence = new AtomicLong();
+        lastEventNanos = System.nanoTime();
+    }
+
+    void record(final Event event, final int firstValue, final int secondValue) {
+        record(event, NO_STATUS, firstValue, secondValue);
+    }
+
+    void record(final Event event, final SSLEngineResult result) {
+        record(event, result.getStatus().ordinal() << 8 | result.getHandshakeStatus().ordinal(), result.bytesConsumed(), result.bytesProduced());
+    }
+
+    void record(final Event event, final SSLEngineResult.HandshakeStatus handshakeStatus) {
+        record(event, handshakeStatus.ordinal(), 0, 0);
+    }
+
+    private void record(final Event event, final int status, final int firstValue, final int secondValue) {
+        long now = System.nanoTime();
+        int slot = (int) sequence.getAndIncrement() & mask;
+        timestamps[slot] = now;
+        events[slot] = (byte) event.ordinal();
+        statuses[slot] = status;
+        firstValues[slot] = firstValue;
+        secondValues[slot] = secondValue;
+        lastEventNanos = now;
+    }
+
+    /**
+     * @return The total number of events recorded, including the ones already overwritten.
+     */
+    public long getEventCount() {
+        return sequence.get();
+    }
+
+    /**
+     * @param timeout The idle time.
+     * @param unit The unit of the idle time.
+     * @return True if no event was recorded during the given time.
+     */
+    public boolean isIdle(final long timeout, final TimeUnit unit) {
+        return System.nanoTime() - lastEventNanos >= unit.toNanos(timeout);
+    }
+
+    /**
+     * Dumps the retained events if no event was recorded during the given time, which usually means the channel is stalled.
+     * @param timeout The idle time.
+     * @param unit The unit of the idle time.
+     * @param out Destination of the dump.
+     * @return True if the events were dumped.
+     * @throws IOException If an error occurs writing to the destination.
+     */
+    public boolean dumpIfIdle(final long timeout, final TimeUnit unit, final Appendable out) throws IOException {
+        if (isIdle(timeout, unit)) {
+            dump(out);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Writes the retained events, oldest first, one per line. Timestamps are in microseconds before the dump.
+     * For UNWRAP and WRAP events, the values are the bytes consumed and produced by the SSLEngine.
+     * For the other events, they are buffer sizes or IO results.
+     * @param out Destination of the dump.
+     * @throws IOException If an error occurs writing to the destination.
+     */
+    public void dump(final Appendable out) throws IOException {
+        long now = System.nanoTime();
+        long last = sequence.get();
+        long[] timestampsCopy = timestamps.clone();
+        byte[] eventsCopy = events.clone();
+        int[] statusesCopy = statuses.clone();
+        int[] firstValuesCopy = firstValues.clone();
+        int[] secondValuesCopy = secondValues.clone();
+        // Slots overwritten while copying are skipped.
+        long first = Math.max(0, sequence.get() - mask - 1);
+        out.append("Last ").append(Long.toString(Math.max(0, last - first))).append(" of ").append(Long.toString(last)).append(" channel events:\n");
+        for (long index = first; index < last; index++) {
+            int slot = (int) index & mask;
+            Event event = EVENTS[eventsCopy[slot]];
+            int status = statusesCopy[slot];
+            out.append(String.format("%12d us  %-24s", TimeUnit.NANOSECONDS.toMicros(timestampsCopy[slot] - now), event));
+            if ((event == Event.UNWRAP || event == Event.WRAP) && status != NO_STATUS) {
+                out.append(String.format(" %-16s %-16s consumed=%d produced=%d", STATUSES[status >>> 8], HANDSHAKE_STATUSES[status & 0xFF],
+                    firstValuesCopy[slot], secondValuesCopy[slot]));
+            } else if (status != NO_STATUS) {
+                out.append(' ').append(HANDSHAKE_STATUSES[status].toString());
+            } else {
+                out.append(String.format(" %d %d", firstValuesCopy[slot], secondValuesCopy[slot]));
+            }
+            out.append('\n');
+        }
+    }
+
+    /**
+     * @return The dump of the retained events.
+     */
+    public String dump() {
+        StringBuilder builder = new StringBuilder();
+        try {
+            dump(builder);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return builder.toString();
+    }
+
+}
@@ -3,11 +3,21 @@ package jpiccoli.io.ssl;
 import java.nio.channels.CompletionHandler;
 import java.util.concurrent.CompletableFuture;
 
-class CompletableFutureWrapper<V> implements CompletionHandler<V, Void> {
+/**
+ * Completion handler which completes a {@link CompletableFuture}, used to implement the {@code Future}
+ * variants of the channel operations on top of the completion handler variants.
+ * 
+ * @author Juliano Piccoli
+ *
+ */
+public class CompletableFutureWrapper<V> implements CompletionHandler<V, Void> {
 
     private final CompletableFuture<V> completableFuture;
 
-    CompletableFutureWrapper(final CompletableFuture<V> completableFuture) {
+    /**
+     * @param completableFuture Future completed with the result or the failure of the operation.
+     */
+    public CompletableFutureWrapper(final CompletableFuture<V> completableFuture) {
         this.completableFuture = completableFuture;
     }
 
@@ -8,38 +8,86 @@ public class ConsumingQueue<E> {
 
     private final Deque<E> queue;
     private E consuming;
+    private boolean closed;
+    private Runnable idleAction;
 
     public ConsumingQueue() {
         queue = new LinkedList<>();
     }
 
-    public synchronized void add(E e) {
+    public synchronized boolean add(E e) {
+        if (closed) {
+            return false;
+        }
         queue.add(e);
+        return true;
     }
 
     public synchronized E consume() {
-        if (consuming == null) {
+        if (consuming == null && !closed) {
             consuming = queue.poll();
             return consuming;
         }
         return null;
     }
 
-    public synchronized boolean consumed(E e) {
-        if (consuming == e) {
+    public boolean consumed(E e) {
+        Runnable action;
+        synchronized (this) {
+            if (consuming != e) {
+                return false;
+            }
             consuming = null;
-            return true;
+            action = takeIdleAction();
         }
-        return false;
+        runIdleAction(action);
+        return true;
     }
 
-    public synchronized boolean replay(E e) {
-        if (consuming == e) {
+    public boolean replay(E e) {
+        Runnable action;
+        synchronized (this) {
+            if (consuming != e) {
+                return false;
+            }
             queue.addFirst(e);
             consuming = null;
-            return true;
+            action = takeIdleAction();
+        }
+        runIdleAction(action);
+        return true;
+    }
+
+    /**
+     * Stops handing out elements and refuses new ones. The action runs once no element is being consumed:
+     * right away if none is, otherwise when the element being consumed is marked as consumed or replayed.
+     * Elements still in the queue at that point are left for the caller to clear.
+     * @param idleAction The action to run once the queue is idle.
+     */
+    public void close(Runnable idleAction) {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            if (consuming != null) {
+                this.idleAction = idleAction;
+                return;
+            }
+        }
+        idleAction.run();
+    }
+
+    private Runnable takeIdleAction() {
+        Runnable action = idleAction;
+        idleAction = null;
+        return action;
+    }
+
+    private static void runIdleAction(Runnable action) {
+        if (action != null) {
+            action.run();
         }
-        return false;
     }
 
     public synchronized Queue<E> copyAndClear() {
@@ -0,0 +1,88 @@
+package jpiccoli.io.ssl;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Default {@link BufferAllocator} which allocates a new direct buffer on each call and frees the native
+ * memory of each released buffer right away, through the cleaner of the buffer.
+ * <p>
+ * The cleaner is reached through JDK internals: {@code sun.misc.Unsafe.invokeCleaner} from Java 9 on, and
+ * the cleaner of {@code sun.nio.ch.DirectBuffer} on Java 8. When neither is accessible, released buffers
+ * are left to the garbage collector, and their native memory is freed only once a collection finds them
+ * unreachable; {@link #isDeterministic()} tells which case applies. Use a {@link PooledBufferAllocator}
+ * to reuse the buffers instead of freeing them.
+ * 
+ * @author Juliano Piccoli
+ *
+ */
+public class DirectBufferAllocator implements BufferAllocator {
+
+    private static final Logger LOGGER = Logger.getLogger(DirectBufferAllocator.class.getName());
+
+    public static final DirectBufferAllocator INSTANCE = new DirectBufferAllocator();
+
+    private final Cleaner cleaner;
+
+    private DirectBufferAllocator() {
+        cleaner = createCleaner();
+    }
+
+    @Override
+    public ByteBuffer allocate(final int capacity) {
+        return ByteBuffer.allocateDirect(capacity);
+    }
+
+    @Override
+    public void release(final ByteBuffer buffer) {
+        if (cleaner != null && buffer.isDirect()) {
+            try {
+                cleaner.clean(buffer);
+            } catch (ReflectiveOperationException | RuntimeException e) {
+                LOGGER.log(Level.FINE, "Error freeing direct buffer", e);
+            }
+        }
+    }
+
+    /**
+     * @return True if released buffers are freed right away, false if they are left to the garbage collector.
+     */
+    public boolean isDeterministic() {
+        return cleaner != null;
+    }
+
+    private static Cleaner createCleaner() {
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            try {
+                Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+                Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+                theUnsafe.setAccessible(true);
+                Object unsafe = theUnsafe.get(null);
+                return buffer -> invokeCleaner.invoke(unsafe, buffer);
+            } catch (NoSuchMethodException e) {
+                // Java 8
+                Method cleanerMethod = Class.forName("sun.nio.ch.DirectBuffer").getMethod("cleaner");
+                Method cleanMethod = Class.forName("sun.misc.Cleaner").getMethod("clean");
+                return buffer -> {
+                    Object bufferCleaner = cleanerMethod.invoke(buffer);
+                    if (bufferCleaner != null) {
+                        cleanMethod.invoke(bufferCleaner);
+                    }
+                };
+            }
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            LOGGER.log(Level.WARNING, "Direct buffers cannot be freed explicitly, leaving them to the garbage collector", e);
+            return null;
+        }
+    }
+
+    @FunctionalInterface
+    private interface Cleaner {
+        void clean(ByteBuffer buffer) throws ReflectiveOperationException;
+    }
+
+}
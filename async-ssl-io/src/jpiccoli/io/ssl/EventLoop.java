@@ -0,0 +1,145 @@
+package jpiccoli.io.ssl;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A thread which owns a Selector and performs the IO of the {@link SelectorSocketChannel}s pinned to it.
+ * It is also an Executor: tasks submitted to it run on the loop thread between two selection rounds,
+ * which makes it suitable for running the delegated tasks of the SSLEngines of the same connections.
+ * Once the loop has terminated, the channels still registered with it are closed, and tasks run on
+ * the thread submitting them, so that no completion is left waiting for a loop which is gone.
+ *
+ * @author Juliano Piccoli
+ *
+ */
+public class EventLoop implements Executor, Closeable {
+
+    private static final Logger LOGGER = Logger.getLogger(EventLoop.class.getName());
+
+    private final Selector selector;
+    private final Queue<Runnable> tasks;
+    private final Thread thread;
+    private volatile boolean closed;
+    private volatile boolean terminated;
+
+    EventLoop(final String name) throws IOException {
+        selector = Selector.open();
+        tasks = new ConcurrentLinkedQueue<>();
+        thread = new Thread(this::run, name);
+        thread.setDaemon(true);
+    }
+
+    void start() {
+        thread.start();
+    }
+
+    Selector getSelector() {
+        return selector;
+    }
+
+    public boolean inEventLoop() {
+        return Thread.currentThread() == thread;
+    }
+
+    boolean isClosed() {
+        return closed;
+    }
+
+    @Override
+    public void execute(final Runnable task) {
+        tasks.add(task);
+        if (terminated) {
+            runTasks();
+        } else if (!inEventLoop()) {
+            selector.wakeup();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        selector.wakeup();
+    }
+
+    /**
+     * Waits for the loop thread to exit, unless called from the loop thread itself.
+     * @throws InterruptedIOException If the calling thread is interrupted while waiting.
+     */
+    void awaitTermination() throws InterruptedIOException {
+        if (!inEventLoop()) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted waiting for " + thread.getName() + " to terminate");
+            }
+        }
+    }
+
+    private void run() {
+        try {
+            while (!closed) {
+                selector.select();
+                runTasks();
+                Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+                while (iterator.hasNext()) {
+                    SelectionKey key = iterator.next();
+                    iterator.remove();
+                    try {
+                        ((SelectorSocketChannel) key.attachment()).processSelectedKey(key);
+                    } catch (RuntimeException e) {
+                        // Thrown by a completion handler. The other channels of the loop must still be served.
+                        LOGGER.log(Level.SEVERE, "Error processing selected channel", e);
+                    }
+                }
+                runTasks();
+            }
+        } catch (IOException | ClosedSelectorException e) {
+            LOGGER.log(Level.SEVERE, "Event loop terminated abnormally", e);
+        } finally {
+            closed = true;
+            closeChannels();
+            // Tasks submitted from now on run on the submitting thread, and those already queued run here.
+            terminated = true;
+            runTasks();
+        }
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                LOGGER.log(Level.SEVERE, "Error running event loop task", e);
+            }
+        }
+    }
+
+    private void closeChannels() {
+        for (SelectionKey key : selector.keys()) {
+            try {
+                ((SelectorSocketChannel) key.attachment()).close();
+            } catch (IOException e) {
+                LOGGER.log(Level.FINE, "Error closing channel", e);
+            }
+        }
+        try {
+            selector.close();
+        } catch (IOException e) {
+            LOGGER.log(Level.FINE, "Error closing selector", e);
+        }
+    }
+
+}
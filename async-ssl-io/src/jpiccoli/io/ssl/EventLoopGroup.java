@@ -0,0 +1,113 @@
+package jpiccoli.io.ssl;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.net.ssl.SSLEngine;
+
+/**
+ * An alternative transport for {@link AsynchronousSSLChannel} based on a fixed set of Selector driven
+ * {@link EventLoop}s, typically one per core, instead of the completion threads of an AsynchronousChannelGroup.
+ * Each registered connection is pinned to one loop, which performs its socket IO and runs the SSLEngine
+ * delegated tasks, so the {@code wrap} and {@code unwrap} calls happen inline on the loop thread.
+ *
+ * @author Juliano Piccoli
+ *
+ */
+public class EventLoopGroup implements Closeable {
+
+    private final EventLoop[] eventLoops;
+    private final AtomicInteger nextEventLoop;
+
+    /**
+     * Creates a group with one event loop per available processor.
+     * @throws IOException If a Selector cannot be opened.
+     */
+    public EventLoopGroup() throws IOException {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Constructor.
+     * @param eventLoopCount The number of event loops, each with its own thread and Selector.
+     * @throws IOException If a Selector cannot be opened.
+     */
+    public EventLoopGroup(final int eventLoopCount) throws IOException {
+        if (eventLoopCount <= 0) {
+            throw new IllegalArgumentException("Invalid number of event loops: " + eventLoopCount);
+        }
+        eventLoops = new EventLoop[eventLoopCount];
+        nextEventLoop = new AtomicInteger();
+        try {
+            for (int i = 0; i < eventLoopCount; i++) {
+                eventLoops[i] = new EventLoop("ssl-event-loop-" + i);
+            }
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+        for (EventLoop eventLoop : eventLoops) {
+            eventLoop.start();
+        }
+    }
+
+    /**
+     * Registers a connected SocketChannel with the next event loop of this group. The channel is switched to non blocking mode.
+     * @param socketChannel The connected channel.
+     * @return An AsynchronousByteChannel whose IO is performed by the chosen event loop.
+     * @throws IOException If the channel cannot be configured.
+     */
+    public SelectorSocketChannel register(final SocketChannel socketChannel) throws IOException {
+        EventLoop eventLoop = eventLoops[Math.floorMod(nextEventLoop.getAndIncrement(), eventLoops.length)];
+        return new SelectorSocketChannel(socketChannel, eventLoop);
+    }
+
+    /**
+     * Registers a connected SocketChannel and layers an AsynchronousSSLChannel over it, using the event loop
+     * of the connection as the Executor for the delegated tasks of the SSLEngine.
+     * @param socketChannel The connected channel.
+     * @param engine The SSLEngine which provides the @{code wrap} and @{code unwrap} primitives.
+     * @return The secure channel.
+     * @throws IOException If the channel cannot be configured.
+     */
+    public AsynchronousSSLChannel registerSSL(final SocketChannel socketChannel, final SSLEngine engine) throws IOException {
+        SelectorSocketChannel channel = register(socketChannel);
+        return new AsynchronousSSLChannel(channel, engine, channel.getEventLoop());
+    }
+
+    /**
+     * Registers a connected SocketChannel and layers an AsynchronousSSLChannel configured by the given builder over it,
+     * using the event loop of the connection as the Executor for the delegated tasks of the SSLEngine.
+     * @param socketChannel The connected channel.
+     * @param engine The SSLEngine which provides the @{code wrap} and @{code unwrap} primitives.
+     * @param builder The configuration of the secure channel.
+     * @return The secure channel.
+     * @throws IOException If the channel cannot be configured.
+     */
+    public AsynchronousSSLChannel registerSSL(final SocketChannel socketChannel, final SSLEngine engine,
+            final AsynchronousSSLChannelBuilder builder) throws IOException {
+        SelectorSocketChannel channel = register(socketChannel);
+        return builder.build(channel, engine, channel.getEventLoop());
+    }
+
+    /**
+     * Stops the event loops and waits for their threads to exit, unless called from one of them. The channels
+     * registered with the loops are closed, and their pending operations fail with an AsynchronousCloseException.
+     * @throws IOException If interrupted while waiting for the loops to exit.
+     */
+    @Override
+    public void close() throws IOException {
+        for (EventLoop eventLoop : eventLoops) {
+            if (eventLoop != null) {
+                eventLoop.close();
+            }
+        }
+        for (EventLoop eventLoop : eventLoops) {
+            if (eventLoop != null) {
+                eventLoop.awaitTermination();
+            }
+        }
+    }
+
+}
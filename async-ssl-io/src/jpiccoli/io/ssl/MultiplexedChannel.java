@@ -0,0 +1,395 @@
+package jpiccoli.io.ssl;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousByteChannel;
+import java.nio.channels.AsynchronousCloseException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.CompletionHandler;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * Carries many independent {@link MultiplexedStream}s over a single AsynchronousByteChannel,
+ * typically an {@link AsynchronousSSLChannel}, so that a single handshake and a single pair of
+ * ciphertext buffers are shared by all of them.
+ * <p>
+ * Data is exchanged in frames made of a 9 bytes header (stream id, frame type and length)
+ * followed by the payload. Each stream has its own flow control window: a peer never sends more
+ * DATA bytes on a stream than the receiver has announced it can buffer, and the receiver grants
+ * more credit through WINDOW_UPDATE frames as the application consumes the data. Pending writes
+ * are served in a round robin fashion, one frame per stream on each write to the delegate channel,
+ * so a bulk transfer on one stream does not starve the others.
+ * <p>
+ * Both ends must use the same window and frame sizes and the same limit of concurrent streams. The side
+ * created with {@code client} set to true opens odd numbered streams and the other side opens even numbered
+ * ones, in increasing order. Opening a stream sends an OPEN frame, and streams opened by the peer are handed
+ * to the accept handler when it arrives. A peer which opens more streams than the limit, or a stream with an
+ * id it is not allowed to use, is treated as a protocol error and the channel is closed.
+ * <p>
+ * The input buffer holds a partly received frame plus room for a whole TLS record, since an
+ * AsynchronousSSLChannel delegate fails a read which cannot take in the plaintext of a full record.
+ * With small frame sizes it is therefore larger than the {@code FRAMES_PER_BUFFER} frames it otherwise holds.
+ *
+ * @author Juliano Piccoli
+ *
+ */
+public class MultiplexedChannel {
+
+    public static final int DEFAULT_WINDOW_SIZE = 64 * 1024;
+    public static final int DEFAULT_MAX_FRAME_SIZE = 16 * 1024;
+    public static final int DEFAULT_MAX_CONCURRENT_STREAMS = 100;
+
+    static final int HEADER_SIZE = 9;
+    static final byte DATA = 0;
+    static final byte WINDOW_UPDATE = 1;
+    static final byte FIN = 2;
+    static final byte OPEN = 3;
+
+    private static final int FRAMES_PER_BUFFER = 4;
+    /**
+     * The 16 KB plaintext of the largest TLS record, plus some slack.
+     */
+    private static final int RECORD_SIZE = 17 * 1024;
+
+    private final AsynchronousByteChannel channel;
+    private final Consumer<MultiplexedStream> acceptHandler;
+    private final int windowSize;
+    private final int maxFrameSize;
+    private final int maxConcurrentStreams;
+    private final boolean client;
+
+    private final ByteBuffer inputBuffer;
+    private final ByteBuffer outputBuffer;
+
+    private final Map<Integer, MultiplexedStream> streams;
+    private final Deque<MultiplexedStream> writableStreams;
+    private final Deque<int[]> controlFrames;
+    private final List<MultiplexedStream> inFlightStreams;
+
+    private final CompletionHandler<Integer, Void> readHandler;
+    private final CompletionHandler<Integer, Void> writeHandler;
+
+    private int nextStreamId;
+    private int lastPeerStreamId;
+    private int localStreamCount;
+    private int peerStreamCount;
+    private boolean writing;
+    private boolean closed;
+
+    /**
+     * Constructor.
+     * @param channel The delegate AsynchronousByteChannel.
+     * @param client True if this side opens odd numbered streams, false if it opens even numbered ones.
+     * @param acceptHandler Receives the streams opened by the peer.
+     */
+    public MultiplexedChannel(final AsynchronousByteChannel channel, final boolean client, final Consumer<MultiplexedStream> acceptHandler) {
+        this(channel, client, acceptHandler, DEFAULT_WINDOW_SIZE, DEFAULT_MAX_FRAME_SIZE, DEFAULT_MAX_CONCURRENT_STREAMS);
+    }
+
+    /**
+     * Constructor.
+     * @param channel The delegate AsynchronousByteChannel.
+     * @param client True if this side opens odd numbered streams, false if it opens even numbered ones.
+     * @param acceptHandler Receives the streams opened by the peer.
+     * @param windowSize Number of bytes each stream buffers on the receiving side.
+     * @param maxFrameSize Maximum payload of a single DATA frame.
+     */
+    public MultiplexedChannel(final AsynchronousByteChannel channel, final boolean client, final Consumer<MultiplexedStream> acceptHandler,
+            final int windowSize, final int maxFrameSize) {
+        this(channel, client, acceptHandler, windowSize, maxFrameSize, DEFAULT_MAX_CONCURRENT_STREAMS);
+    }
+
+    /**
+     * Constructor.
+     * @param channel The delegate AsynchronousByteChannel.
+     * @param client True if this side opens odd numbered streams, false if it opens even numbered ones.
+     * @param acceptHandler Receives the streams opened by the peer.
+     * @param windowSize Number of bytes each stream buffers on the receiving side.
+     * @param maxFrameSize Maximum payload of a single DATA frame.
+     * @param maxConcurrentStreams Maximum number of streams each side may have open at the same time.
+     */
+    public MultiplexedChannel(final AsynchronousByteChannel channel, final boolean client, final Consumer<MultiplexedStream> acceptHandler,
+            final int windowSize, final int maxFrameSize, final int maxConcurrentStreams) {
+        if (windowSize <= 0 || maxFrameSize <= 0) {
+            throw new IllegalArgumentException("Window and frame sizes must be positive");
+        }
+        if (maxConcurrentStreams <= 0) {
+            throw new IllegalArgumentException("Invalid maximum number of concurrent streams: " + maxConcurrentStreams);
+        }
+        this.channel = channel;
+        this.client = client;
+        this.acceptHandler = acceptHandler;
+        this.windowSize = windowSize;
+        this.maxFrameSize = maxFrameSize;
+        this.maxConcurrentStreams = maxConcurrentStreams;
+        inputBuffer = ByteBuffer.allocate(Math.max((HEADER_SIZE + maxFrameSize) * FRAMES_PER_BUFFER, HEADER_SIZE + maxFrameSize + RECORD_SIZE));
+        outputBuffer = ByteBuffer.allocate((HEADER_SIZE + maxFrameSize) * FRAMES_PER_BUFFER);
+        streams = new HashMap<>();
+        writableStreams = new ArrayDeque<>();
+        controlFrames = new ArrayDeque<>();
+        inFlightStreams = new ArrayList<>();
+        readHandler = IOHandlerBuilder.buildCompletionHandler(this::readCompleted, this::ioFailed);
+        writeHandler = IOHandlerBuilder.buildCompletionHandler(this::writeCompleted, this::ioFailed);
+        nextStreamId = client ? 1 : 2;
+    }
+
+    /**
+     * Starts reading frames from the delegate channel.
+     */
+    public void start() {
+        channel.read(inputBuffer, null, readHandler);
+    }
+
+    /**
+     * Opens a new stream.
+     * @return The new stream.
+     * @throws ClosedChannelException If this channel is closed.
+     * @throws IOException If this side already has the maximum number of concurrent streams open.
+     */
+    public MultiplexedStream openStream() throws IOException {
+        MultiplexedStream stream;
+        synchronized (this) {
+            if (closed) {
+                throw new ClosedChannelException();
+            }
+            if (localStreamCount >= maxConcurrentStreams) {
+                throw new IOException("Too many concurrent streams: " + localStreamCount);
+            }
+            stream = new MultiplexedStream(this, nextStreamId, windowSize);
+            nextStreamId += 2;
+            streams.put(stream.getId(), stream);
+            localStreamCount++;
+            // Control frames are written in order and ahead of any data frame, so the
+            // peer always learns about the stream before receiving anything else on it.
+            sendControlFrame(stream.getId(), OPEN, 0);
+        }
+        flush();
+        return stream;
+    }
+
+    public synchronized boolean isOpen() {
+        return !closed && channel.isOpen();
+    }
+
+    /**
+     * Closes the delegate channel. Operations pending on any of the streams fail with an AsynchronousCloseException.
+     * @throws IOException If an error occurs closing the delegate channel.
+     */
+    public void close() throws IOException {
+        try {
+            channel.close();
+        } finally {
+            shutdown(new AsynchronousCloseException(), false);
+        }
+    }
+
+    synchronized boolean isClosed() {
+        return closed;
+    }
+
+    synchronized int getStreamCount() {
+        return streams.size();
+    }
+
+    /**
+     * Schedules a stream which has a pending write and send window available.
+     * Must be called while holding this object's lock.
+     */
+    void scheduleWrite(final MultiplexedStream stream) {
+        if (!writableStreams.contains(stream) && !inFlightStreams.contains(stream)) {
+            writableStreams.add(stream);
+        }
+    }
+
+    /**
+     * Queues a frame without payload. Must be called while holding this object's lock.
+     */
+    void sendControlFrame(final int streamId, final byte type, final int value) {
+        controlFrames.add(new int[] {streamId, type, value});
+    }
+
+    /**
+     * Forgets a stream which has been closed by both sides. Must be called while holding this object's lock.
+     */
+    void removeStream(final MultiplexedStream stream) {
+        if (streams.remove(stream.getId()) != null) {
+            if (isPeerStreamId(stream.getId())) {
+                peerStreamCount--;
+            } else {
+                localStreamCount--;
+            }
+        }
+        writableStreams.remove(stream);
+    }
+
+    private boolean isPeerStreamId(final int streamId) {
+        // The client opens odd numbered streams, so the peer of a client opens even numbered ones.
+        return (streamId % 2 == 0) == client;
+    }
+
+    void flush() {
+        synchronized (this) {
+            if (writing || closed) {
+                return;
+            }
+            outputBuffer.clear();
+            while (!controlFrames.isEmpty() && outputBuffer.remaining() >= HEADER_SIZE) {
+                int[] frame = controlFrames.poll();
+                outputBuffer.putInt(frame[0]).put((byte) frame[1]).putInt(frame[2]);
+            }
+            // Each writable stream contributes at most one frame to a batch, and writing that frame completes
+            // the pending write of the stream. Its next write schedules it again, at the back of the queue.
+            int candidates = writableStreams.size();
+            for (int i = 0; i < candidates && outputBuffer.remaining() > HEADER_SIZE; i++) {
+                MultiplexedStream stream = writableStreams.poll();
+                if (stream.fillFrame(outputBuffer, Math.min(maxFrameSize, outputBuffer.remaining() - HEADER_SIZE))) {
+                    inFlightStreams.add(stream);
+                }
+            }
+            if (outputBuffer.position() == 0) {
+                return;
+            }
+            outputBuffer.flip();
+            writing = true;
+        }
+        channel.write(outputBuffer, null, writeHandler);
+    }
+
+    private void writeCompleted(final Integer result, final Void ignored) {
+        if (outputBuffer.hasRemaining()) {
+            channel.write(outputBuffer, null, writeHandler);
+            return;
+        }
+        List<Runnable> callbacks = new ArrayList<>();
+        synchronized (this) {
+            for (MultiplexedStream stream : inFlightStreams) {
+                stream.frameWritten(callbacks);
+            }
+            inFlightStreams.clear();
+            writing = false;
+        }
+        runCallbacks(callbacks);
+        flush();
+    }
+
+    private void readCompleted(final Integer result, final Void ignored) {
+        if (result == null || result < 0) {
+            shutdown(new ClosedChannelException(), true);
+            return;
+        }
+        List<Runnable> callbacks = new ArrayList<>();
+        try {
+            synchronized (this) {
+                inputBuffer.flip();
+                while (inputBuffer.remaining() >= HEADER_SIZE) {
+                    int position = inputBuffer.position();
+                    int streamId = inputBuffer.getInt(position);
+                    byte type = inputBuffer.get(position + 4);
+                    int length = inputBuffer.getInt(position + 5);
+                    if (type == DATA && (length < 0 || length > maxFrameSize)) {
+                        throw new IOException("Invalid frame length: " + length);
+                    }
+                    if (type == DATA && inputBuffer.remaining() < HEADER_SIZE + length) {
+                        break;
+                    }
+                    inputBuffer.position(position + HEADER_SIZE);
+                    handleFrame(streamId, type, length, callbacks);
+                }
+                inputBuffer.compact();
+            }
+        } catch (IOException e) {
+            runCallbacks(callbacks);
+            ioFailed(e, null);
+            return;
+        }
+        runCallbacks(callbacks);
+        flush();
+        if (isOpen()) {
+            channel.read(inputBuffer, null, readHandler);
+        }
+    }
+
+    private void handleFrame(final int streamId, final byte type, final int length, final List<Runnable> callbacks) throws IOException {
+        MultiplexedStream stream = streams.get(streamId);
+        switch (type) {
+            case OPEN:
+                if (stream != null) {
+                    throw new IOException("Stream already open: " + streamId);
+                }
+                if (!isPeerStreamId(streamId) || streamId <= lastPeerStreamId) {
+                    throw new IOException("Invalid stream id: " + streamId);
+                }
+                if (peerStreamCount >= maxConcurrentStreams) {
+                    throw new IOException("Too many concurrent streams opened by the peer: " + peerStreamCount);
+                }
+                lastPeerStreamId = streamId;
+                final MultiplexedStream acceptedStream = new MultiplexedStream(this, streamId, windowSize);
+                streams.put(streamId, acceptedStream);
+                peerStreamCount++;
+                callbacks.add(() -> acceptHandler.accept(acceptedStream));
+                break;
+            case DATA:
+                if (stream != null) {
+                    stream.dataReceived(inputBuffer, length, callbacks);
+                } else {
+                    // Data for a stream which has already been closed on both sides. Discard it.
+                    inputBuffer.position(inputBuffer.position() + length);
+                }
+                break;
+            case WINDOW_UPDATE:
+                if (length <= 0) {
+                    throw new IOException("Invalid window update: " + length);
+                }
+                if (stream != null) {
+                    stream.windowUpdated(length);
+                }
+                break;
+            case FIN:
+                if (stream != null) {
+                    stream.finReceived(callbacks);
+                }
+                break;
+            default:
+                throw new IOException("Invalid frame type: " + type);
+        }
+    }
+
+    private void ioFailed(final Throwable exc, final Void ignored) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            exc.addSuppressed(e);
+        }
+        shutdown(exc, false);
+    }
+
+    private void shutdown(final Throwable exc, final boolean endOfStream) {
+        List<Runnable> callbacks = new ArrayList<>();
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            for (MultiplexedStream stream : streams.values()) {
+                stream.channelClosed(exc, endOfStream, callbacks);
+            }
+            streams.clear();
+            writableStreams.clear();
+            controlFrames.clear();
+        }
+        runCallbacks(callbacks);
+    }
+
+    private static void runCallbacks(final List<Runnable> callbacks) {
+        for (Runnable callback : callbacks) {
+            callback.run();
+        }
+    }
+
+}
@@ -0,0 +1,264 @@
+package jpiccoli.io.ssl;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousByteChannel;
+import java.nio.channels.AsynchronousCloseException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.CompletionHandler;
+import java.nio.channels.ReadPendingException;
+import java.nio.channels.WritePendingException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Future;
+
+/**
+ * A logical AsynchronousByteChannel carried over a {@link MultiplexedChannel}.
+ * As required by the AsynchronousByteChannel contract, at most one read and one write may be
+ * outstanding at any time. A write completes after a single frame has been handed to the delegate
+ * channel, so it may transfer fewer bytes than requested.
+ * Closing a stream sends a FIN frame to the peer; the stream is forgotten once both sides closed it.
+ *
+ * @author Juliano Piccoli
+ *
+ */
+public class MultiplexedStream implements AsynchronousByteChannel {
+
+    private final MultiplexedChannel multiplexer;
+    private final int id;
+    private final int windowSize;
+    private final ByteBuffer inboundBuffer;
+
+    private IOOperation<?> pendingRead;
+    private IOOperation<?> pendingWrite;
+    private int sendWindow;
+    private int consumedSinceUpdate;
+    private boolean localClosed;
+    private boolean remoteClosed;
+
+    MultiplexedStream(final MultiplexedChannel multiplexer, final int id, final int windowSize) {
+        this.multiplexer = multiplexer;
+        this.id = id;
+        this.windowSize = windowSize;
+        inboundBuffer = ByteBuffer.allocate(windowSize);
+        sendWindow = windowSize;
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    @Override
+    public <A> void read(final ByteBuffer dst, final A attachment, final CompletionHandler<Integer, ? super A> handler) {
+        IOOperation<A> readOperation = new IOOperation<>(dst, attachment, handler);
+        boolean complete = true;
+        synchronized (multiplexer) {
+            if (pendingRead != null) {
+                throw new ReadPendingException();
+            }
+            if (localClosed) {
+                complete = false;
+            } else if (inboundBuffer.position() > 0 || !dst.hasRemaining()) {
+                readOperation.setByteCount(transferTo(dst));
+            } else if (remoteClosed || multiplexer.isClosed()) {
+                readOperation.setByteCount(-1);
+            } else {
+                pendingRead = readOperation;
+                return;
+            }
+        }
+        if (complete) {
+            multiplexer.flush();
+            readOperation.fireCompletion();
+        } else {
+            readOperation.fireException(new ClosedChannelException());
+        }
+    }
+
+    @Override
+    public Future<Integer> read(final ByteBuffer dst) {
+        CompletableFuture<Integer> completableFuture = new CompletableFuture<>();
+        read(dst, null, new CompletableFutureWrapper<>(completableFuture));
+        return completableFuture;
+    }
+
+    @Override
+    public <A> void write(final ByteBuffer src, final A attachment, final CompletionHandler<Integer, ? super A> handler) {
+        IOOperation<A> writeOperation = new IOOperation<>(src, attachment, handler);
+        boolean queued = false;
+        synchronized (multiplexer) {
+            if (pendingWrite != null) {
+                throw new WritePendingException();
+            }
+            if (!localClosed && !multiplexer.isClosed() && src.hasRemaining()) {
+                pendingWrite = writeOperation;
+                queued = true;
+                if (sendWindow > 0) {
+                    multiplexer.scheduleWrite(this);
+                }
+            }
+        }
+        if (queued) {
+            multiplexer.flush();
+        } else if (src.hasRemaining()) {
+            writeOperation.fireException(new ClosedChannelException());
+        } else {
+            writeOperation.fireCompletion();
+        }
+    }
+
+    @Override
+    public Future<Integer> write(final ByteBuffer src) {
+        CompletableFuture<Integer> completableFuture = new CompletableFuture<>();
+        write(src, null, new CompletableFutureWrapper<>(completableFuture));
+        return completableFuture;
+    }
+
+    @Override
+    public boolean isOpen() {
+        synchronized (multiplexer) {
+            return !localClosed && !multiplexer.isClosed();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        List<Runnable> callbacks = new ArrayList<>();
+        synchronized (multiplexer) {
+            if (localClosed) {
+                return;
+            }
+            localClosed = true;
+            if (!multiplexer.isClosed()) {
+                multiplexer.sendControlFrame(id, MultiplexedChannel.FIN, 0);
+            }
+            failPendingOperations(new AsynchronousCloseException(), new AsynchronousCloseException(), callbacks);
+            if (remoteClosed) {
+                multiplexer.removeStream(this);
+            }
+        }
+        for (Runnable callback : callbacks) {
+            callback.run();
+        }
+        multiplexer.flush();
+    }
+
+    /**
+     * Moves buffered inbound data to the destination buffer and grants the consumed
+     * credit back to the peer once half of the window has been consumed.
+     */
+    private int transferTo(final ByteBuffer dst) {
+        inboundBuffer.flip();
+        int count = Math.min(inboundBuffer.remaining(), dst.remaining());
+        ByteBuffer source = inboundBuffer.duplicate();
+        source.limit(source.position() + count);
+        dst.put(source);
+        inboundBuffer.position(inboundBuffer.position() + count);
+        inboundBuffer.compact();
+        consumedSinceUpdate += count;
+        if (consumedSinceUpdate >= windowSize / 2 && !remoteClosed) {
+            multiplexer.sendControlFrame(id, MultiplexedChannel.WINDOW_UPDATE, consumedSinceUpdate);
+            consumedSinceUpdate = 0;
+        }
+        return count;
+    }
+
+    private void failPendingOperations(final Throwable readException, final Throwable writeException, final List<Runnable> callbacks) {
+        if (pendingRead != null) {
+            final IOOperation<?> readOperation = pendingRead;
+            pendingRead = null;
+            callbacks.add(() -> readOperation.fireException(readException));
+        }
+        if (pendingWrite != null) {
+            final IOOperation<?> writeOperation = pendingWrite;
+            pendingWrite = null;
+            callbacks.add(() -> writeOperation.fireException(writeException));
+        }
+    }
+
+    // The methods below are invoked by the MultiplexedChannel while holding its lock.
+
+    void dataReceived(final ByteBuffer frameBuffer, final int length, final List<Runnable> callbacks) throws IOException {
+        if (length > inboundBuffer.remaining()) {
+            throw new IOException("Flow control window exceeded on stream " + id);
+        }
+        if (localClosed) {
+            frameBuffer.position(frameBuffer.position() + length);
+            multiplexer.sendControlFrame(id, MultiplexedChannel.WINDOW_UPDATE, length);
+            return;
+        }
+        ByteBuffer payload = frameBuffer.duplicate();
+        payload.limit(payload.position() + length);
+        inboundBuffer.put(payload);
+        frameBuffer.position(frameBuffer.position() + length);
+        if (pendingRead != null) {
+            final IOOperation<?> readOperation = pendingRead;
+            pendingRead = null;
+            readOperation.setByteCount(transferTo(readOperation.getBuffer()));
+            callbacks.add(readOperation::fireCompletion);
+        }
+    }
+
+    void windowUpdated(final int increment) throws IOException {
+        if (sendWindow > Integer.MAX_VALUE - increment) {
+            throw new IOException("Window update overflows the send window: " + increment);
+        }
+        sendWindow += increment;
+        if (pendingWrite != null && sendWindow > 0) {
+            multiplexer.scheduleWrite(this);
+        }
+    }
+
+    void finReceived(final List<Runnable> callbacks) {
+        remoteClosed = true;
+        if (pendingRead != null && inboundBuffer.position() == 0) {
+            final IOOperation<?> readOperation = pendingRead;
+            pendingRead = null;
+            readOperation.setByteCount(-1);
+            callbacks.add(readOperation::fireCompletion);
+        }
+        if (localClosed) {
+            multiplexer.removeStream(this);
+        }
+    }
+
+    boolean fillFrame(final ByteBuffer frameBuffer, final int maxPayload) {
+        if (pendingWrite == null) {
+            return false;
+        }
+        ByteBuffer source = pendingWrite.getBuffer();
+        int count = Math.min(Math.min(source.remaining(), sendWindow), maxPayload);
+        if (count <= 0) {
+            return false;
+        }
+        frameBuffer.putInt(id).put(MultiplexedChannel.DATA).putInt(count);
+        ByteBuffer payload = source.duplicate();
+        payload.limit(payload.position() + count);
+        frameBuffer.put(payload);
+        source.position(source.position() + count);
+        sendWindow -= count;
+        pendingWrite.incrementByteCount(count);
+        return true;
+    }
+
+    void frameWritten(final List<Runnable> callbacks) {
+        if (pendingWrite != null) {
+            final IOOperation<?> writeOperation = pendingWrite;
+            pendingWrite = null;
+            callbacks.add(writeOperation::fireCompletion);
+        }
+    }
+
+    void channelClosed(final Throwable exception, final boolean endOfStream, final List<Runnable> callbacks) {
+        remoteClosed = true;
+        if (endOfStream && pendingRead != null) {
+            final IOOperation<?> readOperation = pendingRead;
+            pendingRead = null;
+            readOperation.setByteCount(-1);
+            callbacks.add(readOperation::fireCompletion);
+        }
+        failPendingOperations(exception, endOfStream ? new ClosedChannelException() : exception, callbacks);
+    }
+
+}
@@ -0,0 +1,77 @@
+package jpiccoli.io.ssl;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Supplier;
+import javax.net.ssl.SSLEngine;
+
+/**
+ * Keeps a bounded number of configured SSLEngines created ahead of time, so an acceptor does not pay
+ * for {@code SSLContext.createSSLEngine()} and the configuration of the engine on the path of each new
+ * connection. Each engine is handed out only once, since an SSLEngine cannot be reused for another
+ * connection. When the pool is empty, engines are created on demand.
+ *
+ * @author Juliano Piccoli
+ *
+ */
+public class SSLEnginePool {
+
+    private final Supplier<SSLEngine> engineFactory;
+    private final BlockingQueue<SSLEngine> pool;
+    private final Executor refillExecutor;
+    private final AtomicBoolean refilling;
+
+    /**
+     * Constructor.
+     * @param engineFactory Creates and configures the engines, including their client or server mode.
+     * @param capacity The maximum number of engines kept by the pool.
+     * @param refillExecutor Executor on which the pool is filled again after engines are taken from it,
+     * or null for filling it only through {@code fill}.
+     */
+    public SSLEnginePool(final Supplier<SSLEngine> engineFactory, final int capacity, final Executor refillExecutor) {
+        this.engineFactory = engineFactory;
+        this.pool = new ArrayBlockingQueue<>(capacity);
+        this.refillExecutor = refillExecutor;
+        refilling = new AtomicBoolean();
+    }
+
+    /**
+     * Creates engines until the pool is full.
+     * @return This pool.
+     */
+    public SSLEnginePool fill() {
+        while (pool.remainingCapacity() > 0) {
+            if (!pool.offer(engineFactory.get())) {
+                break;
+            }
+        }
+        return this;
+    }
+
+    /**
+     * @return An engine from the pool, or a newly created one if the pool is empty.
+     */
+    public SSLEngine acquire() {
+        SSLEngine engine = pool.poll();
+        if (refillExecutor != null && refilling.compareAndSet(false, true)) {
+            refillExecutor.execute(() -> {
+                try {
+                    fill();
+                } finally {
+                    refilling.set(false);
+                }
+            });
+        }
+        return engine != null ? engine : engineFactory.get();
+    }
+
+    /**
+     * @return The number of engines currently held by the pool.
+     */
+    public int size() {
+        return pool.size();
+    }
+
+}
@@ -0,0 +1,438 @@
+package jpiccoli.io.ssl;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousByteChannel;
+import java.nio.channels.AsynchronousCloseException;
+import java.nio.channels.Channel;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.CompletionHandler;
+import java.nio.channels.ReadPendingException;
+import java.security.GeneralSecurityException;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateException;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.X509TrustManager;
+
+/**
+ * Opt-in warm up of the TLS stack, meant to run once at startup before accepting connections. It runs
+ * handshakes followed by data exchanges between pairs of {@link AsynchronousSSLChannel}s connected in
+ * memory, so the first real connections do not pay for loading and compiling the code of the SSLContext,
+ * the cipher implementations and the {@code wrap} and {@code unwrap} loops of the channel. No socket is
+ * opened.
+ * <p>
+ * The handshakes cycle through every combination of protocol and cipher suite enabled on a server engine
+ * configured by the given builder. Combinations which fail to handshake, for example suites which need a
+ * certificate of another type, are skipped after their first failure. The client side of the warm up
+ * only accepts the certificate presented by the server engine it is paired with, so it needs no trust
+ * store and can never be used to trust another peer.
+ *
+ * @author Juliano Piccoli
+ *
+ */
+public class SSLWarmUp {
+
+    private static final Logger LOGGER = Logger.getLogger(SSLWarmUp.class.getName());
+
+    public static final int DEFAULT_HANDSHAKE_COUNT = 200;
+    public static final int DEFAULT_EXCHANGE_COUNT = 10;
+    public static final int DEFAULT_PAYLOAD_SIZE = 1024 * 4;
+    private static final long TIMEOUT_SECONDS = 10;
+
+    private final SSLContext serverContext;
+    private final AsynchronousSSLChannelBuilder channelBuilder;
+    private final Executor executor;
+    private final List<String> skippedCombinations;
+    private int handshakeCount;
+    private int exchangeCount;
+    private int payloadSize;
+
+    /**
+     * Constructor.
+     * @param serverContext The SSLContext used for accepting connections.
+     * @param channelBuilder The configuration of the accepted channels, also applied to the client side of the warm up.
+     * @param executor Executor for running the delegated tasks generated by the SSLEngines during handshake, and the
+     * completions of the in-memory connections.
+     */
+    public SSLWarmUp(final SSLContext serverContext, final AsynchronousSSLChannelBuilder channelBuilder, final Executor executor) {
+        this.serverContext = serverContext;
+        this.channelBuilder = channelBuilder;
+        this.executor = executor;
+        skippedCombinations = new ArrayList<>();
+        handshakeCount = DEFAULT_HANDSHAKE_COUNT;
+        exchangeCount = DEFAULT_EXCHANGE_COUNT;
+        payloadSize = DEFAULT_PAYLOAD_SIZE;
+    }
+
+    /**
+     * @param handshakeCount The total number of connections, spread over all protocol and cipher suite combinations.
+     * @return This warm up.
+     */
+    public SSLWarmUp setHandshakeCount(final int handshakeCount) {
+        if (handshakeCount < 0) {
+            throw new IllegalArgumentException("Invalid handshake count: " + handshakeCount);
+        }
+        this.handshakeCount = handshakeCount;
+        return this;
+    }
+
+    /**
+     * @param exchangeCount The number of requests echoed on each connection after the handshake.
+     * @return This warm up.
+     */
+    public SSLWarmUp setExchangeCount(final int exchangeCount) {
+        if (exchangeCount < 0) {
+            throw new IllegalArgumentException("Invalid exchange count: " + exchangeCount);
+        }
+        this.exchangeCount = exchangeCount;
+        return this;
+    }
+
+    /**
+     * @param payloadSize The size of each request and response.
+     * @return This warm up.
+     */
+    public SSLWarmUp setPayloadSize(final int payloadSize) {
+        if (payloadSize <= 0) {
+            throw new IllegalArgumentException("Invalid payload size: " + payloadSize);
+        }
+        this.payloadSize = payloadSize;
+        return this;
+    }
+
+    /**
+     * Runs the warm up, blocking until all connections are done.
+     * @return The number of connections which completed their handshake and exchanges.
+     * @throws GeneralSecurityException If the SSLContext of the client side cannot be created.
+     */
+    public int run() throws GeneralSecurityException {
+        PairedServerTrustManager trustManager = new PairedServerTrustManager();
+        SSLContext clientContext = SSLContext.getInstance("TLS");
+        clientContext.init(null, new TrustManager[] {trustManager}, null);
+        List<String[]> combinations = listCombinations();
+        int completed = 0;
+        for (int i = 0; i < handshakeCount && !combinations.isEmpty(); i++) {
+            String[] combination = combinations.get(i % combinations.size());
+            try {
+                runConnection(clientContext, trustManager, combination[0], combination[1]);
+                completed++;
+            } catch (ExecutionException | TimeoutException e) {
+                LOGGER.log(Level.FINE, "Skipping " + combination[0] + " with " + combination[1], e);
+                combinations.remove(combination);
+                skippedCombinations.add(combination[0] + " " + combination[1]);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        return completed;
+    }
+
+    /**
+     * @return The protocol and cipher suite combinations skipped by the last run, because they could not complete a handshake.
+     */
+    public List<String> getSkippedCombinations() {
+        return Collections.unmodifiableList(skippedCombinations);
+    }
+
+    private List<String[]> listCombinations() {
+        SSLEngine prototype = serverContext.createSSLEngine();
+        prototype.setUseClientMode(false);
+        channelBuilder.configure(prototype);
+        List<String[]> combinations = new ArrayList<>();
+        for (String protocol : prototype.getEnabledProtocols()) {
+            for (String cipherSuite : prototype.getEnabledCipherSuites()) {
+                // TLS 1.3 suites do not name the key exchange, and only work with TLS 1.3.
+                boolean tls13Suite = !cipherSuite.contains("_WITH_");
+                if (tls13Suite == "TLSv1.3".equals(protocol) && !cipherSuite.endsWith("_SCSV")) {
+                    combinations.add(new String[] {protocol, cipherSuite});
+                }
+            }
+        }
+        return combinations;
+    }
+
+    private void runConnection(final SSLContext clientContext, final PairedServerTrustManager trustManager, final String protocol,
+            final String cipherSuite) throws InterruptedException, ExecutionException, TimeoutException {
+        MemoryChannel clientPipe = new MemoryChannel(executor);
+        MemoryChannel serverPipe = new MemoryChannel(clientPipe);
+        SSLEngine serverEngine = serverContext.createSSLEngine();
+        serverEngine.setUseClientMode(false);
+        SSLEngine clientEngine = clientContext.createSSLEngine();
+        clientEngine.setUseClientMode(true);
+        trustManager.setServerEngine(serverEngine);
+        AsynchronousSSLChannel client = null;
+        AsynchronousSSLChannel serverSide = null;
+        try {
+            client = build(clientPipe, clientEngine, protocol, cipherSuite);
+            serverSide = build(serverPipe, serverEngine, protocol, cipherSuite);
+            int bufferSize = Math.max(payloadSize, serverEngine.getSession().getApplicationBufferSize());
+            ByteBuffer request = ByteBuffer.allocate(payloadSize);
+            ByteBuffer response = ByteBuffer.allocate(payloadSize);
+            ByteBuffer clientBuffer = ByteBuffer.allocate(bufferSize);
+            ByteBuffer serverBuffer = ByteBuffer.allocate(bufferSize);
+            // The first exchange carries the handshake.
+            for (int i = 0; i < Math.max(1, exchangeCount); i++) {
+                request.clear();
+                response.clear();
+                CompletableFuture<Void> requestWritten = writeFully(client, request);
+                readFully(serverSide, serverBuffer, payloadSize).get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+                CompletableFuture<Void> responseWritten = writeFully(serverSide, response);
+                readFully(client, clientBuffer, payloadSize).get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+                requestWritten.get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+                responseWritten.get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            }
+        } finally {
+            trustManager.setServerEngine(null);
+            closeChannel(client != null ? client : clientPipe);
+            closeChannel(serverSide != null ? serverSide : serverPipe);
+        }
+    }
+
+    private AsynchronousSSLChannel build(final AsynchronousByteChannel delegate, final SSLEngine engine, final String protocol,
+            final String cipherSuite) {
+        AsynchronousSSLChannel channel = channelBuilder.build(delegate, engine, executor);
+        engine.setEnabledProtocols(new String[] {protocol});
+        engine.setEnabledCipherSuites(new String[] {cipherSuite});
+        return channel;
+    }
+
+    private static CompletableFuture<Void> writeFully(final AsynchronousByteChannel channel, final ByteBuffer buffer) {
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        writeRemaining(channel, buffer, future);
+        return future;
+    }
+
+    private static void writeRemaining(final AsynchronousByteChannel channel, final ByteBuffer buffer, final CompletableFuture<Void> future) {
+        channel.write(buffer, null, IOHandlerBuilder.buildCompletionHandler((Integer result, Void ignored) -> {
+            if (buffer.hasRemaining()) {
+                writeRemaining(channel, buffer, future);
+            } else {
+                future.complete(null);
+            }
+        }, (exc, ignored) -> future.completeExceptionally(exc)));
+    }
+
+    private static CompletableFuture<Void> readFully(final AsynchronousByteChannel channel, final ByteBuffer buffer, final int length) {
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        readRemaining(channel, buffer, length, future);
+        return future;
+    }
+
+    private static void readRemaining(final AsynchronousByteChannel channel, final ByteBuffer buffer, final int length,
+            final CompletableFuture<Void> future) {
+        buffer.clear();
+        channel.read(buffer, null, IOHandlerBuilder.buildCompletionHandler((Integer result, Void ignored) -> {
+            if (result < 0) {
+                future.completeExceptionally(new IOException("Unexpected end of stream"));
+            } else if (result < length) {
+                readRemaining(channel, buffer, length - result, future);
+            } else {
+                future.complete(null);
+            }
+        }, (exc, ignored) -> future.completeExceptionally(exc)));
+    }
+
+    private static void closeChannel(final Channel channel) {
+        if (channel == null) {
+            return;
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            LOGGER.log(Level.FINE, "Error closing channel", e);
+        }
+    }
+
+    /**
+     * One end of an in-memory connection. Bytes written to one end are read from the other, and completions
+     * are dispatched to the executor, so that a channel is never called back from within one of its own calls.
+     * Both ends share the lock of the first one.
+     */
+    private static class MemoryChannel implements AsynchronousByteChannel {
+
+        private final Object lock;
+        private final Executor executor;
+        private MemoryChannel peer;
+        private ByteBuffer received;
+        private IOOperation<?> pendingRead;
+        private boolean open;
+
+        MemoryChannel(final Executor executor) {
+            this.lock = new Object();
+            this.executor = executor;
+            received = ByteBuffer.allocate(0);
+            open = true;
+        }
+
+        MemoryChannel(final MemoryChannel peer) {
+            this.lock = peer.lock;
+            this.executor = peer.executor;
+            this.peer = peer;
+            peer.peer = this;
+            received = ByteBuffer.allocate(0);
+            open = true;
+        }
+
+        @Override
+        public <A> void read(final ByteBuffer dst, final A attachment, final CompletionHandler<Integer, ? super A> handler) {
+            IOOperation<A> operation = new IOOperation<>(dst, attachment, handler);
+            synchronized (lock) {
+                if (pendingRead != null) {
+                    throw new ReadPendingException();
+                }
+                if (!open) {
+                    executor.execute(() -> operation.fireException(new ClosedChannelException()));
+                } else if (received.position() > 0 || !peer.open) {
+                    complete(operation);
+                } else {
+                    pendingRead = operation;
+                }
+            }
+        }
+
+        @Override
+        public Future<Integer> read(final ByteBuffer dst) {
+            CompletableFuture<Integer> completableFuture = new CompletableFuture<>();
+            read(dst, null, new CompletableFutureWrapper<>(completableFuture));
+            return completableFuture;
+        }
+
+        @Override
+        public <A> void write(final ByteBuffer src, final A attachment, final CompletionHandler<Integer, ? super A> handler) {
+            IOOperation<A> operation = new IOOperation<>(src, attachment, handler);
+            synchronized (lock) {
+                if (!open || !peer.open) {
+                    executor.execute(() -> operation.fireException(new ClosedChannelException()));
+                    return;
+                }
+                operation.setByteCount(src.remaining());
+                peer.receive(src);
+                executor.execute(operation::fireCompletion);
+            }
+        }
+
+        @Override
+        public Future<Integer> write(final ByteBuffer src) {
+            CompletableFuture<Integer> completableFuture = new CompletableFuture<>();
+            write(src, null, new CompletableFutureWrapper<>(completableFuture));
+            return completableFuture;
+        }
+
+        @Override
+        public boolean isOpen() {
+            synchronized (lock) {
+                return open;
+            }
+        }
+
+        @Override
+        public void close() {
+            synchronized (lock) {
+                if (!open) {
+                    return;
+                }
+                open = false;
+                if (pendingRead != null) {
+                    IOOperation<?> operation = pendingRead;
+                    pendingRead = null;
+                    executor.execute(() -> operation.fireException(new AsynchronousCloseException()));
+                }
+                if (peer.pendingRead != null) {
+                    // The peer reads the end of stream once it has consumed what is left.
+                    peer.complete(peer.pendingRead);
+                    peer.pendingRead = null;
+                }
+            }
+        }
+
+        /**
+         * Appends the bytes written by the peer, completing the pending read if there is one. Called holding the lock.
+         */
+        private void receive(final ByteBuffer src) {
+            if (received.remaining() < src.remaining()) {
+                ByteBuffer grown = ByteBuffer.allocate(Math.max(received.capacity() * 2, received.position() + src.remaining()));
+                received.flip();
+                grown.put(received);
+                received = grown;
+            }
+            received.put(src);
+            if (pendingRead != null) {
+                IOOperation<?> operation = pendingRead;
+                pendingRead = null;
+                complete(operation);
+            }
+        }
+
+        /**
+         * Moves the received bytes into the buffer of a read and dispatches its completion. Called holding the lock.
+         */
+        private void complete(final IOOperation<?> operation) {
+            if (received.position() == 0) {
+                operation.setByteCount(-1);
+            } else {
+                ByteBuffer dst = operation.getBuffer();
+                received.flip();
+                int length = Math.min(dst.remaining(), received.remaining());
+                ByteBuffer slice = received.duplicate();
+                slice.limit(slice.position() + length);
+                dst.put(slice);
+                received.position(received.position() + length);
+                received.compact();
+                operation.setByteCount(length);
+            }
+            executor.execute(operation::fireCompletion);
+        }
+
+    }
+
+    /**
+     * Client side trust of the warm up. It accepts a certificate chain only when its end entity certificate is
+     * the one presented by the in-memory server engine of the current connection, and trusts nothing otherwise.
+     */
+    private static class PairedServerTrustManager implements X509TrustManager {
+
+        private volatile SSLEngine serverEngine;
+
+        void setServerEngine(final SSLEngine serverEngine) {
+            this.serverEngine = serverEngine;
+        }
+
+        @Override
+        public void checkClientTrusted(final X509Certificate[] chain, final String authType) throws CertificateException {
+            throw new CertificateException("Client certificates are not used by the warm up");
+        }
+
+        @Override
+        public void checkServerTrusted(final X509Certificate[] chain, final String authType) throws CertificateException {
+            SSLEngine engine = serverEngine;
+            SSLSession session = engine == null ? null : engine.getHandshakeSession();
+            Certificate[] certificates = session == null ? null : session.getLocalCertificates();
+            if (chain == null || chain.length == 0 || certificates == null || certificates.length == 0 || !certificates[0].equals(chain[0])) {
+                throw new CertificateException("Not the certificate of the warm up server");
+            }
+        }
+
+        @Override
+        public X509Certificate[] getAcceptedIssuers() {
+            return new X509Certificate[0];
+        }
+
+    }
+
+}
@@ -0,0 +1,266 @@
+package jpiccoli.io.ssl;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousByteChannel;
+import java.nio.channels.AsynchronousCloseException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.CompletionHandler;
+import java.nio.channels.ReadPendingException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritePendingException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * An AsynchronousByteChannel over a non blocking SocketChannel pinned to an {@link EventLoop}.
+ * Each {@code read} and {@code write} first attempts the operation immediately on the calling thread
+ * and only registers interest with the Selector of the loop when the socket is not ready. Completion
+ * handlers may therefore run on the calling thread, up to a bounded nesting depth, or on the loop thread.
+ *
+ * @author Juliano Piccoli
+ *
+ */
+public class SelectorSocketChannel implements AsynchronousByteChannel {
+
+    private static final int MAX_HANDLER_INVOCATION_DEPTH = 16;
+    private static final ThreadLocal<int[]> HANDLER_INVOCATION_DEPTH = ThreadLocal.withInitial(() -> new int[1]);
+    private static final IOOperation<?> CLAIMED = new IOOperation<>(null, null, null);
+
+    private final SocketChannel socketChannel;
+    private final EventLoop eventLoop;
+    private final AtomicReference<IOOperation<?>> pendingRead;
+    private final AtomicReference<IOOperation<?>> pendingWrite;
+    private SelectionKey selectionKey;
+
+    SelectorSocketChannel(final SocketChannel socketChannel, final EventLoop eventLoop) throws IOException {
+        this.socketChannel = socketChannel;
+        this.eventLoop = eventLoop;
+        pendingRead = new AtomicReference<>();
+        pendingWrite = new AtomicReference<>();
+        socketChannel.configureBlocking(false);
+        eventLoop.execute(this::register);
+    }
+
+    public EventLoop getEventLoop() {
+        return eventLoop;
+    }
+
+    public SocketChannel getSocketChannel() {
+        return socketChannel;
+    }
+
+    @Override
+    public <A> void read(final ByteBuffer dst, final A attachment, final CompletionHandler<Integer, ? super A> handler) {
+        if (!pendingRead.compareAndSet(null, CLAIMED)) {
+            throw new ReadPendingException();
+        }
+        IOOperation<A> readOperation = new IOOperation<>(dst, attachment, handler);
+        try {
+            int result = socketChannel.read(dst);
+            if (result != 0 || !dst.hasRemaining()) {
+                complete(pendingRead, CLAIMED, readOperation, result);
+                return;
+            }
+        } catch (IOException e) {
+            pendingRead.set(null);
+            invoke(() -> readOperation.fireException(e));
+            return;
+        }
+        pendingRead.set(readOperation);
+        awaitReady(pendingRead);
+    }
+
+    @Override
+    public Future<Integer> read(final ByteBuffer dst) {
+        CompletableFuture<Integer> completableFuture = new CompletableFuture<>();
+        read(dst, null, new CompletableFutureWrapper<>(completableFuture));
+        return completableFuture;
+    }
+
+    @Override
+    public <A> void write(final ByteBuffer src, final A attachment, final CompletionHandler<Integer, ? super A> handler) {
+        if (!pendingWrite.compareAndSet(null, CLAIMED)) {
+            throw new WritePendingException();
+        }
+        IOOperation<A> writeOperation = new IOOperation<>(src, attachment, handler);
+        try {
+            int result = socketChannel.write(src);
+            if (result != 0 || !src.hasRemaining()) {
+                complete(pendingWrite, CLAIMED, writeOperation, result);
+                return;
+            }
+        } catch (IOException e) {
+            pendingWrite.set(null);
+            invoke(() -> writeOperation.fireException(e));
+            return;
+        }
+        pendingWrite.set(writeOperation);
+        awaitReady(pendingWrite);
+    }
+
+    /**
+     * Registers interest in the readiness of the socket for a pending operation. A close which ran while the
+     * slot of the operation was still claimed did not see it, so the operation is failed here in that case.
+     */
+    private void awaitReady(final AtomicReference<IOOperation<?>> pending) {
+        if (socketChannel.isOpen()) {
+            eventLoop.execute(this::updateInterest);
+        } else {
+            failPendingOperation(pending);
+        }
+    }
+
+    @Override
+    public Future<Integer> write(final ByteBuffer src) {
+        CompletableFuture<Integer> completableFuture = new CompletableFuture<>();
+        write(src, null, new CompletableFutureWrapper<>(completableFuture));
+        return completableFuture;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return socketChannel.isOpen();
+    }
+
+    /**
+     * Closes the socket and fails the pending operations with an AsynchronousCloseException. On the loop thread
+     * they fail after the current handler returns, anywhere else right away, as they do when the loop is closed.
+     * The slots of the operations ensure each one completes only once, whichever thread gets to it first.
+     */
+    @Override
+    public void close() throws IOException {
+        socketChannel.close();
+        if (eventLoop.inEventLoop() && !eventLoop.isClosed()) {
+            eventLoop.execute(this::failPendingOperations);
+        } else {
+            failPendingOperations();
+        }
+    }
+
+    private void register() {
+        try {
+            selectionKey = socketChannel.register(eventLoop.getSelector(), 0, this);
+            updateInterest();
+        } catch (ClosedChannelException e) {
+            failPendingOperations();
+        } catch (ClosedSelectorException e) {
+            // The loop terminated before the channel could join it.
+            try {
+                socketChannel.close();
+            } catch (IOException closeException) {
+                //
+            }
+            failPendingOperations();
+        }
+    }
+
+    /**
+     * Runs on the loop thread. Called when the Selector reports the channel as ready.
+     */
+    void processSelectedKey(final SelectionKey key) {
+        try {
+            try {
+                if (key.isReadable()) {
+                    retry(pendingRead, true);
+                }
+                if (key.isValid() && key.isWritable()) {
+                    retry(pendingWrite, false);
+                }
+            } finally {
+                // Also when a completion handler throws, so the key does not keep selecting an operation which completed.
+                updateInterest();
+            }
+        } catch (CancelledKeyException e) {
+            failPendingOperations();
+        }
+    }
+
+    private void retry(final AtomicReference<IOOperation<?>> pending, final boolean read) {
+        IOOperation<?> operation = pending.get();
+        if (operation == null || operation == CLAIMED) {
+            return;
+        }
+        try {
+            ByteBuffer buffer = operation.getBuffer();
+            int result = read ? socketChannel.read(buffer) : socketChannel.write(buffer);
+            if (result != 0) {
+                complete(pending, operation, operation, result);
+            }
+        } catch (IOException e) {
+            fail(pending, operation, e);
+        }
+    }
+
+    private void updateInterest() {
+        if (selectionKey == null || !selectionKey.isValid()) {
+            return;
+        }
+        int interestOps = 0;
+        IOOperation<?> read = pendingRead.get();
+        IOOperation<?> write = pendingWrite.get();
+        if (read != null && read != CLAIMED) {
+            interestOps |= SelectionKey.OP_READ;
+        }
+        if (write != null && write != CLAIMED) {
+            interestOps |= SelectionKey.OP_WRITE;
+        }
+        if (selectionKey.interestOps() != interestOps) {
+            selectionKey.interestOps(interestOps);
+        }
+    }
+
+    private void failPendingOperations() {
+        failPendingOperation(pendingRead);
+        failPendingOperation(pendingWrite);
+    }
+
+    private void failPendingOperation(final AtomicReference<IOOperation<?>> pending) {
+        IOOperation<?> operation = pending.get();
+        if (operation != null && operation != CLAIMED) {
+            fail(pending, operation, new AsynchronousCloseException());
+        }
+    }
+
+    /**
+     * @param expected The content of the pending slot: CLAIMED while the operation is attempted on the calling
+     * thread, the operation itself once it waits for the Selector. Closing the channel may have failed it since.
+     */
+    private void complete(final AtomicReference<IOOperation<?>> pending, final IOOperation<?> expected, final IOOperation<?> operation,
+            final int result) {
+        // The pending slot is released before invoking the handler, which may well issue the next operation.
+        if (pending.compareAndSet(expected, null)) {
+            operation.setByteCount(result);
+            invoke(operation::fireCompletion);
+        }
+    }
+
+    private void fail(final AtomicReference<IOOperation<?>> pending, final IOOperation<?> operation, final Throwable exc) {
+        if (pending.compareAndSet(operation, null)) {
+            invoke(() -> operation.fireException(exc));
+        }
+    }
+
+    /**
+     * Invokes a completion handler directly unless too many handlers are already nested in the calling
+     * thread's stack, in which case the invocation is handed to the event loop.
+     */
+    private void invoke(final Runnable handlerInvocation) {
+        int[] depth = HANDLER_INVOCATION_DEPTH.get();
+        if (depth[0] < MAX_HANDLER_INVOCATION_DEPTH) {
+            depth[0]++;
+            try {
+                handlerInvocation.run();
+            } finally {
+                depth[0]--;
+            }
+        } else {
+            eventLoop.execute(handlerInvocation);
+        }
+    }
+
+}
@@ -0,0 +1,333 @@
+package jpiccoli.io.ssl;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousByteChannel;
+import java.nio.channels.AsynchronousSocketChannel;
+import java.nio.channels.CompletionHandler;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Terminates TLS in front of a plaintext service: the data decrypted from an {@link AsynchronousSSLChannel}
+ * is forwarded to a backend AsynchronousSocketChannel, and the data received from the backend is sent back
+ * encrypted.
+ * <p>
+ * Each direction owns a fixed number of buffers. A buffer filled by a read on one side is written as is to the
+ * other side and only becomes available for reading again after that write completes, so no data is copied
+ * and at most {@code bufferSize * buffersPerDirection} bytes are in flight per direction. When one side has no
+ * free buffer left, reading from it stops until the other side catches up.
+ * <p>
+ * End of stream is propagated as a half close: once a side reaches end of stream and all its pending data
+ * has been written to the other side, the output of the other side is shut down. The relay closes both
+ * channels when both directions are finished, or as soon as an error occurs on any of them.
+ * <p>
+ * The backend keeps sending its responses after the client's end of stream only with TLS 1.3. With TLS 1.2
+ * or earlier the client's close_notify also shuts down the output to the client, so the relay closes as soon
+ * as the data received from the client has been written to the backend.
+ *
+ * @author Juliano Piccoli
+ *
+ */
+public class TlsRelay {
+
+    private static final Logger LOGGER = Logger.getLogger(TlsRelay.class.getName());
+
+    public static final int DEFAULT_BUFFER_SIZE = 1024 * 16;
+    public static final int DEFAULT_BUFFERS_PER_DIRECTION = 4;
+
+    private final AsynchronousSSLChannel client;
+    private final AsynchronousSocketChannel backend;
+    private final BufferAllocator allocator;
+    private final Direction clientToBackend;
+    private final Direction backendToClient;
+    private final AtomicInteger finishedDirections;
+    private final AtomicBoolean closed;
+
+    private volatile Consumer<TlsRelay> closeListener;
+    private volatile long startNanos;
+    private volatile long endNanos;
+
+    /**
+     * Constructor.
+     * @param client The TLS channel from the client.
+     * @param backend The connected plaintext channel to the backend.
+     */
+    public TlsRelay(final AsynchronousSSLChannel client, final AsynchronousSocketChannel backend) {
+        this(client, backend, DEFAULT_BUFFER_SIZE, DEFAULT_BUFFERS_PER_DIRECTION, DirectBufferAllocator.INSTANCE);
+    }
+
+    /**
+     * Constructor.
+     * @param client The TLS channel from the client.
+     * @param backend The connected plaintext channel to the backend.
+     * @param bufferSize The size of each relay buffer.
+     * @param buffersPerDirection The number of buffers, and thus the maximum number of in flight reads and writes, of each direction.
+     * @param allocator Allocator which provides the relay buffers. They are handed back to it once the relay is closed.
+     */
+    public TlsRelay(final AsynchronousSSLChannel client, final AsynchronousSocketChannel backend, final int bufferSize,
+            final int buffersPerDirection, final BufferAllocator allocator) {
+        if (bufferSize <= 0 || buffersPerDirection <= 0) {
+            throw new IllegalArgumentException("Buffer size and count must be positive");
+        }
+        this.client = client;
+        this.backend = backend;
+        this.allocator = allocator;
+        clientToBackend = new Direction(client, backend, this::clientEndOfStream, bufferSize, buffersPerDirection);
+        backendToClient = new Direction(backend, client, () -> client.shutdownOutput(), bufferSize, buffersPerDirection);
+        finishedDirections = new AtomicInteger();
+        closed = new AtomicBoolean();
+    }
+
+    /**
+     * @param closeListener Notified once, after the relay closed both channels.
+     */
+    public void setCloseListener(final Consumer<TlsRelay> closeListener) {
+        this.closeListener = closeListener;
+    }
+
+    public void start() {
+        startNanos = System.nanoTime();
+        clientToBackend.pump();
+        backendToClient.pump();
+    }
+
+    public void close() {
+        if (closed.compareAndSet(false, true)) {
+            endNanos = System.nanoTime();
+            closeChannel(client);
+            closeChannel(backend);
+            clientToBackend.releaseBuffers();
+            backendToClient.releaseBuffers();
+            Consumer<TlsRelay> listener = closeListener;
+            if (listener != null) {
+                listener.accept(this);
+            }
+        }
+    }
+
+    public boolean isOpen() {
+        return !closed.get();
+    }
+
+    public long getClientToBackendBytes() {
+        return clientToBackend.getTransferredBytes();
+    }
+
+    public long getBackendToClientBytes() {
+        return backendToClient.getTransferredBytes();
+    }
+
+    /**
+     * @return The time elapsed since the relay was started, up to its closing.
+     */
+    public long getElapsedNanos() {
+        long end = closed.get() ? endNanos : System.nanoTime();
+        return startNanos == 0 ? 0 : end - startNanos;
+    }
+
+    /**
+     * @return The bytes relayed in both directions per second since the relay was started.
+     */
+    public double getThroughput() {
+        long elapsedNanos = getElapsedNanos();
+        return elapsedNanos == 0 ? 0 : (getClientToBackendBytes() + getBackendToClientBytes()) * 1e9 / elapsedNanos;
+    }
+
+    /**
+     * Propagates the client's end of stream to the backend. Nothing more can be relayed back when the output
+     * to the client is shut down as well, as with TLS 1.2, so the relay does not wait for the other direction.
+     */
+    private void clientEndOfStream() throws IOException {
+        backend.shutdownOutput();
+        if (client.isOutputShutdown()) {
+            close();
+        }
+    }
+
+    private void directionFinished() {
+        if (finishedDirections.incrementAndGet() == 2) {
+            close();
+        }
+    }
+
+    private void failed(final Throwable exc) {
+        if (!closed.get()) {
+            LOGGER.log(Level.FINE, "Relay failed", exc);
+        }
+        close();
+    }
+
+    private static void closeChannel(final AsynchronousByteChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            LOGGER.log(Level.FINE, "Error closing channel", e);
+        }
+    }
+
+    @FunctionalInterface
+    private interface OutputShutdown {
+        void shutdownOutput() throws IOException;
+    }
+
+    private class Direction {
+
+        private final AsynchronousByteChannel source;
+        private final AsynchronousByteChannel sink;
+        private final OutputShutdown sinkShutdown;
+        private final Deque<ByteBuffer> freeBuffers;
+        private final Deque<ByteBuffer> filledBuffers;
+        private final AtomicLong transferredBytes;
+        private final CompletionHandler<Integer, ByteBuffer> readHandler;
+        private final CompletionHandler<Integer, ByteBuffer> writeHandler;
+
+        private boolean reading;
+        private boolean writing;
+        private boolean endOfStream;
+        private boolean finished;
+
+        Direction(final AsynchronousByteChannel source, final AsynchronousByteChannel sink, final OutputShutdown sinkShutdown,
+                final int bufferSize, final int bufferCount) {
+            this.source = source;
+            this.sink = sink;
+            this.sinkShutdown = sinkShutdown;
+            freeBuffers = new ArrayDeque<>(bufferCount);
+            filledBuffers = new ArrayDeque<>(bufferCount);
+            for (int i = 0; i < bufferCount; i++) {
+                freeBuffers.add(allocator.allocate(bufferSize));
+            }
+            transferredBytes = new AtomicLong();
+            readHandler = IOHandlerBuilder.buildCompletionHandler(this::readCompleted, this::ioFailed);
+            writeHandler = IOHandlerBuilder.buildCompletionHandler(this::writeCompleted, this::ioFailed);
+        }
+
+        long getTransferredBytes() {
+            return transferredBytes.get();
+        }
+
+        /**
+         * Starts a read if a buffer is free and a write if a buffer is filled, or propagates
+         * the end of stream once everything read from the source has been written.
+         */
+        void pump() {
+            ByteBuffer readBuffer = null;
+            ByteBuffer writeBuffer = null;
+            boolean shutdown = false;
+            synchronized (this) {
+                if (closed.get()) {
+                    return;
+                }
+                if (!reading && !endOfStream && !freeBuffers.isEmpty()) {
+                    reading = true;
+                    readBuffer = freeBuffers.poll();
+                    readBuffer.clear();
+                }
+                if (!writing && !filledBuffers.isEmpty()) {
+                    writing = true;
+                    writeBuffer = filledBuffers.peek();
+                }
+                if (endOfStream && !writing && !finished) {
+                    finished = true;
+                    shutdown = true;
+                }
+            }
+            if (writeBuffer != null) {
+                sink.write(writeBuffer, writeBuffer, writeHandler);
+            }
+            if (readBuffer != null) {
+                source.read(readBuffer, readBuffer, readHandler);
+            }
+            if (shutdown) {
+                try {
+                    sinkShutdown.shutdownOutput();
+                } catch (IOException e) {
+                    failed(e);
+                    return;
+                }
+                directionFinished();
+            }
+        }
+
+        private void readCompleted(final Integer result, final ByteBuffer buffer) {
+            synchronized (this) {
+                reading = false;
+                if (closed.get()) {
+                    allocator.release(buffer);
+                    return;
+                }
+                if (result < 0) {
+                    endOfStream = true;
+                    freeBuffers.add(buffer);
+                } else if (result == 0) {
+                    freeBuffers.addFirst(buffer);
+                } else {
+                    buffer.flip();
+                    filledBuffers.add(buffer);
+                }
+            }
+            pump();
+        }
+
+        private void writeCompleted(final Integer result, final ByteBuffer buffer) {
+            transferredBytes.addAndGet(result);
+            synchronized (this) {
+                writing = false;
+                if (closed.get()) {
+                    allocator.release(buffer);
+                    return;
+                }
+                if (!buffer.hasRemaining()) {
+                    filledBuffers.poll();
+                    freeBuffers.add(buffer);
+                }
+            }
+            pump();
+        }
+
+        private void ioFailed(final Throwable exc, final ByteBuffer buffer) {
+            boolean release;
+            synchronized (this) {
+                boolean writeFailed = writing && buffer == filledBuffers.peek();
+                if (writeFailed) {
+                    writing = false;
+                } else {
+                    reading = false;
+                }
+                release = closed.get();
+                if (!release && !writeFailed) {
+                    freeBuffers.add(buffer);
+                }
+            }
+            if (release) {
+                allocator.release(buffer);
+            }
+            failed(exc);
+        }
+
+        /**
+         * Hands back to the allocator the buffers not held by an in flight operation.
+         * The remaining ones are released when their operations complete.
+         */
+        synchronized void releaseBuffers() {
+            for (ByteBuffer buffer : freeBuffers) {
+                allocator.release(buffer);
+            }
+            for (ByteBuffer buffer : filledBuffers) {
+                if (!writing || buffer != filledBuffers.peek()) {
+                    allocator.release(buffer);
+                }
+            }
+            freeBuffers.clear();
+            filledBuffers.clear();
+        }
+
+    }
+
+}
@@ -0,0 +1,20 @@
+package jpiccoli.io.ssl;
+
+/**
+ * Receives notifications when the amount of outbound data queued on an {@link AsynchronousSSLChannel}
+ * crosses its high or low water mark.
+ * 
+ * @author Juliano Piccoli
+ *
+ */
+@FunctionalInterface
+public interface WritabilityListener {
+
+    /**
+     * Invoked on the thread which caused the change, either the one issuing a write or the one completing it.
+     * @param channel The channel whose writability changed.
+     * @param writable False if the queued data reached the high water mark, true if it dropped back to the low water mark.
+     */
+    void writabilityChanged(AsynchronousSSLChannel channel, boolean writable);
+
+}
@@ -0,0 +1,20 @@
+package jpiccoli.io.ssl;
+
+import java.io.IOException;
+
+/**
+ * Reported to the completion handler of a write when accepting it would make the outbound data
+ * queued on an {@link AsynchronousSSLChannel} exceed the configured limit.
+ * 
+ * @author Juliano Piccoli
+ *
+ */
+public class WriteQueueFullException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    public WriteQueueFullException(final long queuedBytes, final long limit) {
+        super("Outbound queue limit exceeded: " + queuedBytes + " bytes queued, limit is " + limit);
+    }
+
+}